@@ -0,0 +1,330 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Model driven load generator: synthetic entities are walked through random actions permitted
+ * in their current state, as read from {@link StateMachine#getStateActions()}. Actions are built
+ * by pluggable factories, classes without factory (e.g. ANY and timeouts) are not generated.
+ * Virtual {@link TestClock} advances by tick after every round over all entities.
+ * <p>
+ * Same load is driven by a single thread, by a thread pool (each thread owns a slice of entities)
+ * and by {@link StateMachineRuntime} lanes, reporting throughput, latency percentiles, allocation
+ * per transition and NOTFOUND rate for every entity and thread count, to spot scaling cliffs.
+ * Run with {@code gradle loadGenerator [-Pentities=1000,100000] [-Pthreads=1,4]}.
+ */
+public class LoadGenerator<S extends Enum<S>, O> {
+
+    public interface ActionFactory<O> {
+        StateMachine.Action create(O object, Random random);
+    }
+
+    public enum Mode {
+        SINGLE_THREAD, THREAD_POOL, RUNTIME
+    }
+
+    public static final class Report {
+        private final Mode mode;
+        private final int entities;
+        private final int threads;
+        private final long transitions;
+        private final long notFound;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final LatencyHistogram.Snapshot latency;
+
+        private Report(Mode mode, int entities, int threads, long transitions, long notFound,
+                       long elapsedNanos, long allocatedBytes, LatencyHistogram.Snapshot latency) {
+            this.mode = mode;
+            this.entities = entities;
+            this.threads = threads;
+            this.transitions = transitions;
+            this.notFound = notFound;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.latency = latency;
+        }
+
+        public double getThroughput() {
+            return transitions * 1e9 / elapsedNanos;
+        }
+
+        public double getNotFoundRate() {
+            return transitions == 0 ? 0 : (double) notFound / transitions;
+        }
+
+        /**
+         * @return bytes allocated by all threads per transition, including actions built by factories
+         */
+        public double getAllocatedPerTransition() {
+            return transitions == 0 || allocatedBytes < 0 ? Double.NaN : (double) allocatedBytes / transitions;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        static String header() {
+            return String.format("%-13s %9s %7s %12s %9s %9s %9s %9s %10s",
+                                 "mode", "entities", "threads", "ops/s", "p50 ns", "p99 ns", "p999 ns",
+                                 "notFound", "bytes/op");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %9d %7d %12.0f %9d %9d %9d %8.2f%% %10.1f",
+                                 mode, entities, threads, getThroughput(),
+                                 latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                                 latency.getValueAtPercentile(99.9), getNotFoundRate() * 100,
+                                 getAllocatedPerTransition());
+        }
+    }
+
+    private final StateMachine<S, O> machine;
+    private final IntFunction<O> entityFactory;
+    private final TestClock clock;
+    private final Duration tick;
+    private final Map<Class<?>, ActionFactory<O>> factories = Maps.newHashMap();
+    private double noise;
+
+    /**
+     * @param entityFactory initial object of entity with given index
+     * @param clock         virtual clock used by machine
+     * @param tick          virtual time passing between rounds
+     */
+    public LoadGenerator(StateMachine<S, O> machine, IntFunction<O> entityFactory, TestClock clock, Duration tick) {
+        this.machine = machine;
+        this.entityFactory = entityFactory;
+        this.clock = clock;
+        this.tick = tick;
+    }
+
+    public <A extends StateMachine.Action> LoadGenerator<S, O> withFactory(Class<A> actionClass, ActionFactory<O> factory) {
+        factories.put(actionClass, factory);
+        return this;
+    }
+
+    /**
+     * @param noise share of actions picked regardless of current state, to exercise NOTFOUND path
+     */
+    public LoadGenerator<S, O> withNoise(double noise) {
+        Preconditions.checkArgument(noise >= 0 && noise <= 1, "Noise should be in [0, 1]: %s", noise);
+        this.noise = noise;
+        return this;
+    }
+
+    public Report run(Mode mode, int entities, int threads, int rounds) throws Exception {
+        final Model model = new Model();
+        switch (mode) {
+            case SINGLE_THREAD:
+                return runThreads(mode, model, entities, 1, rounds);
+            case THREAD_POOL:
+                return runThreads(mode, model, entities, threads, rounds);
+            case RUNTIME:
+                return runRuntime(model, entities, threads, rounds);
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    // action classes with factories by state
+    private final class Model {
+        private final Map<S, List<ActionFactory<O>>> permitted = Maps.newHashMap();
+        private final List<ActionFactory<O>> all = Lists.newArrayList();
+
+        private Model() {
+            machine.getStateActions().forEach((state, classes) -> {
+                for (Class<?> actionClass : classes) {
+                    final ActionFactory<O> factory = factories.get(actionClass);
+                    if (factory != null) {
+                        permitted.computeIfAbsent(state, s -> Lists.newArrayList()).add(factory);
+                    }
+                }
+            });
+            all.addAll(factories.values());
+        }
+
+        private StateMachine.Action next(O object, Random random) {
+            final List<ActionFactory<O>> candidates = random.nextDouble() < noise
+                    ? all
+                    : permitted.getOrDefault(machine.getState(object), all);
+            return candidates.get(random.nextInt(candidates.size())).create(object, random);
+        }
+    }
+
+    private Report runThreads(Mode mode, Model model, int entities, int threads, int rounds) throws Exception {
+        final List<O> objects = createEntities(entities);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder transitions = new LongAdder();
+        final LongAdder notFound = new LongAdder();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                                   new LinkedBlockingQueue<>());
+        executor.prestartAllCoreThreads();
+        try {
+            final long allocatedBefore = allocatedBytes();
+            final long started = System.nanoTime();
+            final List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int from = (int) ((long) entities * t / threads);
+                final int to = (int) ((long) entities * (t + 1) / threads);
+                final Random random = new Random(t);
+                workers.add(executor.submit(() -> {
+                    long missed = 0;
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = from; i < to; i++) {
+                            final O object = objects.get(i);
+                            final StateMachine.Action action = model.next(object, random);
+                            final long begin = System.nanoTime();
+                            final O result = machine.transitionOrNull(object, action);
+                            latency.record(System.nanoTime() - begin);
+                            if (result == null) {
+                                missed++;
+                            } else {
+                                objects.set(i, result);
+                            }
+                        }
+                        if (from == 0) {
+                            clock.increment(tick);
+                        }
+                    }
+                    transitions.add((long) rounds * (to - from));
+                    notFound.add(missed);
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            final long elapsed = System.nanoTime() - started;
+            return new Report(mode, entities, threads, transitions.sum(), notFound.sum(), elapsed,
+                              allocatedBytes() - allocatedBefore, latency.snapshot());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Report runRuntime(Model model, int entities, int lanes, int rounds) throws Exception {
+        final List<O> objects = createEntities(entities);
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder notFound = new LongAdder();
+        final Random random = new Random(0);
+        try (StateMachineRuntime<S, O> runtime = new StateMachineRuntime<>(machine, lanes, clock, tick, (before, after) -> {
+        })) {
+            for (O object : objects) {
+                runtime.register(object).join();
+            }
+            final long allocatedBefore = allocatedBytes();
+            final long started = System.nanoTime();
+            final List<CompletableFuture<Optional<O>>> results = new ArrayList<>(entities);
+            for (int round = 0; round < rounds; round++) {
+                results.clear();
+                for (O object : objects) {
+                    final long begin = System.nanoTime();
+                    results.add(runtime.submit(machine.getObjectId(object), model.next(object, random))
+                                       .whenComplete((result, error) -> latency.record(System.nanoTime() - begin)));
+                }
+                // mirror is refreshed from results, actions of the next round are picked from it
+                for (int i = 0; i < entities; i++) {
+                    final Optional<O> result = results.get(i).join();
+                    if (result.isPresent()) {
+                        objects.set(i, result.get());
+                    } else {
+                        notFound.increment();
+                    }
+                }
+                clock.increment(tick);
+            }
+            final long elapsed = System.nanoTime() - started;
+            return new Report(Mode.RUNTIME, entities, lanes, (long) rounds * entities, notFound.sum(), elapsed,
+                              allocatedBytes() - allocatedBefore, latency.snapshot());
+        }
+    }
+
+    private List<O> createEntities(int entities) {
+        final List<O> objects = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            objects.add(entityFactory.apply(i));
+        }
+        return objects;
+    }
+
+    // bytes allocated by all live threads so far or -1 if JVM doesn't track allocations
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long allocated = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            allocated += Math.max(bytes, 0);
+        }
+        return allocated;
+    }
+
+    private static List<Integer> parse(String property, List<Integer> defaults) {
+        final String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            return defaults;
+        }
+        final List<Integer> values = Lists.newArrayList();
+        for (String item : value.split(",")) {
+            values.add(Integer.parseInt(item.trim()));
+        }
+        return values;
+    }
+
+    /**
+     * Drives {@link PhoneCallStateMachine} with growing number of entities and threads.
+     */
+    public static void main(String[] args) throws Exception {
+        final List<Integer> entityCounts = parse("entities", Arrays.asList(1_000, 100_000, 1_000_000));
+        final List<Integer> threadCounts = parse("threads", ImmutableList.of(1, 4, Runtime.getRuntime().availableProcessors()));
+        final int transitionsPerRun = Integer.getInteger("transitions", 2_000_000);
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine machine = new PhoneCallStateMachine(clock, Duration.ofMinutes(10));
+        final LoadGenerator<Phone.State, Phone> generator = new LoadGenerator<>(
+                machine, i -> Phone.of("line-" + i, Phone.State.OffHook, null, null, null, Duration.ZERO),
+                clock, Duration.ofSeconds(1))
+                .withFactory(Phone.CallDialed.class, (phone, random) -> new Phone.CallDialed("555-" + random.nextInt(10_000)))
+                .withFactory(Phone.CallConnected.class, (phone, random) -> new Phone.CallConnected())
+                .withFactory(Phone.HungUp.class, (phone, random) -> new Phone.HungUp())
+                .withFactory(Phone.LeftMessage.class, (phone, random) -> new Phone.LeftMessage("bye"))
+                .withNoise(0.05);
+
+        System.out.println(Report.header());
+        for (int entities : entityCounts) {
+            final int rounds = Math.max(1, transitionsPerRun / entities);
+            // warm up
+            generator.run(Mode.SINGLE_THREAD, entities, 1, rounds);
+            System.out.println(generator.run(Mode.SINGLE_THREAD, entities, 1, rounds));
+            for (int threads : threadCounts) {
+                System.out.println(generator.run(Mode.THREAD_POOL, entities, threads, rounds));
+            }
+            for (int threads : threadCounts) {
+                System.out.println(generator.run(Mode.RUNTIME, entities, threads, rounds));
+            }
+        }
+    }
+}
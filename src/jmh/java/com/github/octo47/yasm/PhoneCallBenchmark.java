@@ -0,0 +1,123 @@
+package com.github.octo47.yasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Transitions of {@link PhoneCallStateMachine}: plain transitions, full call walk (step by step,
+ * as a sequence and in mutable mode) and loop() over connected call, where ANY timeout guard
+ * is evaluated and rejects.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PhoneCallBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Machine {
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine machine = new PhoneCallStateMachine(clock, Duration.ofHours(1));
+
+        @Setup
+        public void setup() {
+            machine.freeze();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MeteredMachine {
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine machine = new PhoneCallStateMachine(clock, Duration.ofHours(1));
+
+        @Setup
+        public void setup() {
+            machine.enableMetrics();
+            machine.freeze();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MutableMachine {
+        final TestClock clock = new TestClock();
+        final MutablePhoneCallStateMachine machine = new MutablePhoneCallStateMachine(clock, Duration.ofHours(1));
+
+        @Setup
+        public void setup() {
+            machine.freeze();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Phones {
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone.CallDialed dialed = new Phone.CallDialed("333-33-33");
+        final Phone.CallConnected connected = new Phone.CallConnected();
+        final Phone.HungUp hungUp = new Phone.HungUp();
+        final List<StateMachine.Action> callActions = Arrays.asList(dialed, connected, hungUp);
+        Phone ringing;
+        Phone talking;
+
+        @Setup
+        public void setup(Machine state) {
+            ringing = state.machine.transitionOrNull(offHook, dialed);
+            talking = state.machine.transitionOrNull(ringing, connected);
+        }
+    }
+
+    @Benchmark
+    public Optional<Phone> transition(Machine state, Phones phones) {
+        return state.machine.transition(phones.offHook, phones.dialed);
+    }
+
+    @Benchmark
+    public Phone transitionOrNull(Machine state, Phones phones) {
+        return state.machine.transitionOrNull(phones.offHook, phones.dialed);
+    }
+
+    @Benchmark
+    public Phone transitionWithMetrics(MeteredMachine state, Phones phones) {
+        return state.machine.transitionOrNull(phones.offHook, phones.dialed);
+    }
+
+    @Benchmark
+    public Optional<Phone> notFound(Machine state, Phones phones) {
+        return state.machine.transition(phones.offHook, phones.connected);
+    }
+
+    @Benchmark
+    public Optional<Phone> loop(Machine state, Phones phones) {
+        return state.machine.loop(phones.talking);
+    }
+
+    @Benchmark
+    public void call(Machine state, Phones phones, Blackhole blackhole) {
+        final PhoneCallStateMachine machine = state.machine;
+        final Phone ringing = machine.transitionOrNull(phones.offHook, phones.dialed);
+        final Phone talking = machine.transitionOrNull(ringing, phones.connected);
+        blackhole.consume(machine.transitionOrNull(talking, phones.hungUp));
+    }
+
+    @Benchmark
+    public void mutableCall(MutableMachine state, Phones phones, Blackhole blackhole) {
+        final MutablePhoneCallStateMachine machine = state.machine;
+        final Phone ringing = machine.transitionOrNull(phones.offHook, phones.dialed);
+        final Phone talking = machine.transitionOrNull(ringing, phones.connected);
+        blackhole.consume(machine.transitionOrNull(talking, phones.hungUp));
+    }
+
+    @Benchmark
+    public SequenceResult<Phone.State, Phone> callSequence(Machine state, Phones phones) {
+        return state.machine.transitionSequence(phones.offHook, phones.callActions);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.octo47.yasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Full call cycles over {@link StateMachineRuntime} lanes, to see how runtime scales with lanes and callers.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuntimeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Runtime {
+        @Param({"1", "4", "16"})
+        int lanes;
+
+        @Param({"100000"})
+        int phones;
+
+        StateMachineRuntime<Phone.State, Phone> runtime;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            runtime = new StateMachineRuntime<>(new PhoneCallStateMachine(new TestClock()), lanes);
+            for (int i = 0; i < phones; i++) {
+                runtime.register(Phone.of("line-" + i, Phone.State.OffHook, null, null, null, Duration.ZERO));
+            }
+            runtime.get("line-0").join();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            runtime.close();
+        }
+    }
+
+    @Benchmark
+    public Optional<Phone> call(Runtime state) {
+        final String line = "line-" + ThreadLocalRandom.current().nextInt(state.phones);
+        final StateMachineRuntime<Phone.State, Phone> runtime = state.runtime;
+        runtime.tell(line, new Phone.CallDialed(line));
+        runtime.tell(line, new Phone.CallConnected());
+        return runtime.submit(line, new Phone.HungUp()).join();
+    }
+}
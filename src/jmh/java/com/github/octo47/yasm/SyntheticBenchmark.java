@@ -0,0 +1,66 @@
+package com.github.octo47.yasm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+
+/**
+ * Dispatch over {@link SyntheticStateMachine} of different shapes: plain tables,
+ * guard-heavy and ANY-heavy states.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SyntheticBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Machine {
+        @Param({"PLAIN", "GUARDS", "ANY"})
+        String shape;
+
+        @Param({"16"})
+        int guards;
+
+        SyntheticStateMachine machine;
+
+        @Setup
+        public void setup() {
+            machine = new SyntheticStateMachine(SyntheticStateMachine.Shape.valueOf(shape), guards);
+            machine.freeze();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Walk {
+        SyntheticStateMachine.Item item = new SyntheticStateMachine.Item(SyntheticStateMachine.Node.N00, 0);
+        int step;
+    }
+
+    @Benchmark
+    public Optional<SyntheticStateMachine.Item> transition(Machine state, Walk walk) {
+        final StateMachine.Action action = SyntheticStateMachine.ACTIONS[walk.step++ & 7];
+        final Optional<SyntheticStateMachine.Item> next = state.machine.transition(walk.item, action);
+        walk.item = next.orElse(walk.item);
+        return next;
+    }
+
+    @Benchmark
+    public SyntheticStateMachine.Item transitionOrNull(Machine state, Walk walk) {
+        final StateMachine.Action action = SyntheticStateMachine.ACTIONS[walk.step++ & 7];
+        final SyntheticStateMachine.Item next = state.machine.transitionOrNull(walk.item, action);
+        walk.item = next != null ? next : walk.item;
+        return next;
+    }
+
+    @Benchmark
+    public Optional<SyntheticStateMachine.Item> loop(Machine state, Walk walk) {
+        return state.machine.loop(walk.item);
+    }
+}
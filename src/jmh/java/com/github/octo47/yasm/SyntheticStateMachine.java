@@ -0,0 +1,125 @@
+package com.github.octo47.yasm;
+
+import java.util.Objects;
+
+/**
+ * Machine with many states and actions, used to benchmark dispatch independently of
+ * {@link Phone} specifics. Every state permits every action, moving to the next state.
+ * Depending on {@link Shape} states also get rejecting guarded or ANY transitions,
+ * which are evaluated ahead of the accepting one.
+ */
+class SyntheticStateMachine extends StateMachine<SyntheticStateMachine.Node, SyntheticStateMachine.Item> {
+
+    enum Node {
+        N00, N01, N02, N03, N04, N05, N06, N07, N08, N09, N10, N11, N12, N13, N14, N15,
+        N16, N17, N18, N19, N20, N21, N22, N23, N24, N25, N26, N27, N28, N29, N30, N31
+    }
+
+    enum Shape {
+        // single unguarded transition per (state, action)
+        PLAIN,
+        // rejecting guards registered before accepting transition
+        GUARDS,
+        // rejecting ANY transitions evaluated before every action
+        ANY
+    }
+
+    static class Step0 extends SimpleAction {
+    }
+
+    static class Step1 extends SimpleAction {
+    }
+
+    static class Step2 extends SimpleAction {
+    }
+
+    static class Step3 extends SimpleAction {
+    }
+
+    static class Step4 extends SimpleAction {
+    }
+
+    static class Step5 extends SimpleAction {
+    }
+
+    static class Step6 extends SimpleAction {
+    }
+
+    static class Step7 extends SimpleAction {
+    }
+
+    static final Action[] ACTIONS = {
+            new Step0(), new Step1(), new Step2(), new Step3(),
+            new Step4(), new Step5(), new Step6(), new Step7()
+    };
+
+    static final class Item {
+        private final Node node;
+        private final long counter;
+
+        Item(Node node, long counter) {
+            this.node = node;
+            this.counter = counter;
+        }
+
+        Node getNode() {
+            return node;
+        }
+
+        long getCounter() {
+            return counter;
+        }
+
+        Item withNode(Node node) {
+            return new Item(node, counter);
+        }
+
+        Item increment() {
+            return new Item(node, counter + 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Item item = (Item) o;
+            return counter == item.counter && node == item.node;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(node, counter);
+        }
+
+        @Override
+        public String toString() {
+            return "Item{node=" + node + ", counter=" + counter + '}';
+        }
+    }
+
+    SyntheticStateMachine(Shape shape, int guards) {
+        super("Synthetic", Item::getNode, Item::withNode, Item::toString);
+        final Node[] nodes = Node.values();
+        for (Node node : nodes) {
+            final Node next = nodes[(node.ordinal() + 1) % nodes.length];
+            final StateBuilder builder = fromState(node).onEntry(Item::increment);
+            if (shape == Shape.ANY) {
+                for (int i = 0; i < guards; i++) {
+                    builder.permitIf(AnyAction.class, next, never());
+                }
+            }
+            for (Action action : ACTIONS) {
+                if (shape == Shape.GUARDS) {
+                    for (int i = 0; i < guards; i++) {
+                        builder.permitIf(action.getClass(), next, never());
+                    }
+                }
+                builder.permit(action.getClass(), next);
+            }
+        }
+    }
+
+    private Guard<Item> never() {
+        return (item, feedback) -> item.getCounter() < 0;
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.octo47.yasm;
+
+/**
+ * Encodes actions for {@link TransitionJournal}. Type ids should be stable between
+ * restarts and non negative, negative ids are reserved by {@link JournaledStore}.
+ */
+public interface ActionCodec {
+
+    int typeId(StateMachine.Action action);
+
+    byte[] encode(StateMachine.Action action);
+
+    StateMachine.Action decode(int typeId, byte[] payload);
+}
@@ -0,0 +1,80 @@
+package com.github.octo47.yasm;
+
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Owns current objects of {@link AsyncStateMachine}, keyed by machine id provider.
+ * Actions for the same object are chained after the pending one, so they are applied
+ * one by one in submission order, while no thread is held while guards or transformers
+ * wait for I/O. Failed transition keeps previous object for the following actions.
+ */
+public class AsyncEntityRuntime<S extends Enum<S>, O> {
+
+    private final AsyncStateMachine<S, O> machine;
+    // object id -> object after last submitted action
+    private final ConcurrentMap<String, CompletableFuture<O>> tails = new ConcurrentHashMap<>();
+
+    public AsyncEntityRuntime(AsyncStateMachine<S, O> machine) {
+        this.machine = machine;
+        machine.freeze();
+    }
+
+    /**
+     * Starts owning given object, replacing current object with the same id
+     * once already submitted actions complete.
+     */
+    public CompletionStage<O> register(O object) {
+        return tails.merge(machine.getObjectId(object), CompletableFuture.completedFuture(object),
+                (tail, registered) -> tail.handle((ignored, error) -> object));
+    }
+
+    public CompletionStage<Optional<O>> get(String id) {
+        final CompletableFuture<O> tail = tails.get(id);
+        return tail == null ? CompletableFuture.completedFuture(Optional.empty()) : tail.thenApply(Optional::of);
+    }
+
+    public CompletionStage<Optional<O>> remove(String id) {
+        final CompletableFuture<O> tail = tails.remove(id);
+        return tail == null ? CompletableFuture.completedFuture(Optional.empty()) : tail.thenApply(Optional::of);
+    }
+
+    /**
+     * Applies action to the current object with given id after all previously submitted actions.
+     * Stage completes with empty result if no transition found and fails
+     * with {@link NoSuchElementException} if there is no such object.
+     */
+    public CompletionStage<Optional<O>> submit(String id, StateMachine.Action action) {
+        final CompletableFuture<Optional<O>> result = new CompletableFuture<>();
+        final CompletableFuture<O> next = tails.computeIfPresent(id, (key, tail) -> {
+            final CompletableFuture<Optional<O>> transitioned =
+                    tail.thenCompose(current -> machine.transition(current, action));
+            transitioned.whenComplete((transition, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(transition);
+                }
+            });
+            // tail is already completed here and never fails
+            return transitioned.handle((transition, error) ->
+                    error == null && transition.isPresent() ? transition.get() : tail.join());
+        });
+        if (next == null) {
+            result.completeExceptionally(new NoSuchElementException("No object " + id));
+        }
+        return result;
+    }
+
+    public int size() {
+        return tails.size();
+    }
+
+    public AsyncStateMachine<S, O> getMachine() {
+        return machine;
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * State machine with asynchronous guards and action transformers, e.g. doing I/O.
+ * Transition doesn't block calling thread, it completes when guards and transformer complete.
+ * <p>
+ * Definition is kept in a {@link StateMachine} and dispatched by its frozen table, so candidates
+ * are resolved the same way, supertypes of action class and nested states included, and transition
+ * of the first accepting guard in that order is taken. Up to {@code guardConcurrency} guards are
+ * evaluated concurrently, so guards should be free of side effects. Entry and exit transformers
+ * stay synchronous. Timeout transitions are resolved for {@link StateMachine.TimeoutAction},
+ * but nothing schedules them, caller should submit the action.
+ * <p>
+ * Transitions of the same object should be serialized by caller, see {@link AsyncEntityRuntime}.
+ */
+public abstract class AsyncStateMachine<S extends Enum<S>, O> {
+
+    public interface AsyncGuard<O> {
+        CompletionStage<Boolean> test(O object);
+    }
+
+    public interface AsyncTransformer<A extends StateMachine.Action, O> {
+        CompletionStage<O> apply(A action, O object);
+    }
+
+    private static final CompletableFuture<Boolean> ACCEPTED = CompletableFuture.completedFuture(true);
+
+    private final class AsyncTransition<A extends StateMachine.Action> {
+        private final AsyncGuard<O> guard;
+        private final AsyncTransformer<A, O> transformer;
+
+        private AsyncTransition(AsyncGuard<O> guard, AsyncTransformer<A, O> transformer) {
+            this.guard = guard;
+            this.transformer = transformer;
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompletionStage<O> apply(StateMachine<S, O>.Transition<?> transition, StateMachine.Action action, O object) {
+            final StateMachine.Action wrapped = transition.actionClass == StateMachine.AnyAction.class
+                    ? new StateMachine.AnyAction(action)
+                    : action;
+            return ((AsyncTransformer<StateMachine.Action, O>) transformer).apply(wrapped, object);
+        }
+    }
+
+    /**
+     * Evaluates guards of candidates in a sliding window of {@code guardConcurrency} guards.
+     * Window start is the first candidate with unknown outcome, so accepting guard is taken only
+     * when all guards before it rejected. Failed guard fails transition only when reached the same
+     * way, accepting guard before it wins.
+     */
+    private final class Evaluation {
+        private final O object;
+        private final StateMachine<S, O>.Transition<?>[] candidates;
+        // Boolean verdict or Throwable of failed guard
+        private final Object[] outcomes;
+        private final CompletableFuture<StateMachine<S, O>.Transition<?>> matched = new CompletableFuture<>();
+        private int launched;
+        private int decided;
+
+        private Evaluation(O object, StateMachine<S, O>.Transition<?>[] candidates) {
+            this.object = object;
+            this.candidates = candidates;
+            this.outcomes = new Object[candidates.length];
+        }
+
+        private CompletableFuture<StateMachine<S, O>.Transition<?>> start() {
+            launchMore();
+            return matched;
+        }
+
+        private void launchMore() {
+            while (true) {
+                final int next;
+                synchronized (this) {
+                    if (matched.isDone() || launched == candidates.length || launched - decided >= guardConcurrency) {
+                        return;
+                    }
+                    next = launched++;
+                }
+                final CompletionStage<Boolean> outcome;
+                try {
+                    outcome = asyncTransitions.get(candidates[next].id).guard.test(object);
+                } catch (RuntimeException e) {
+                    decide(next, null, e);
+                    continue;
+                }
+                outcome.whenComplete((accepted, error) -> decide(next, accepted, error));
+            }
+        }
+
+        private void decide(int index, @Nullable Boolean accepted, @Nullable Throwable error) {
+            synchronized (this) {
+                if (matched.isDone()) {
+                    return;
+                }
+                outcomes[index] = error != null ? error : Boolean.TRUE.equals(accepted);
+                while (decided < outcomes.length && outcomes[decided] != null) {
+                    final Object outcome = outcomes[decided];
+                    if (outcome instanceof Throwable) {
+                        matched.completeExceptionally((Throwable) outcome);
+                        return;
+                    }
+                    if ((Boolean) outcome) {
+                        matched.complete(candidates[decided]);
+                        return;
+                    }
+                    decided++;
+                }
+                if (decided == outcomes.length) {
+                    matched.complete(null);
+                    return;
+                }
+            }
+            launchMore();
+        }
+    }
+
+    public class StateBuilder {
+        private final StateMachine<S, O>.StateBuilder definition;
+
+        private StateBuilder(S from) {
+            this.definition = AsyncStateMachine.this.definition.fromState(from);
+        }
+
+        public StateBuilder onEntry(Function<O, O> entryTransformer) {
+            definition.onEntry(entryTransformer);
+            return this;
+        }
+
+        public StateBuilder onExit(Function<O, O> exitTransformer) {
+            definition.onExit(exitTransformer);
+            return this;
+        }
+
+        /**
+         * See {@link StateMachine.StateBuilder#subStateOf(Enum)}.
+         */
+        public StateBuilder subStateOf(S parent) {
+            definition.subStateOf(parent);
+            return this;
+        }
+
+        public <A extends StateMachine.Action> StateBuilder permitIf(Class<A> action, S to, AsyncGuard<O> guard,
+                                                                     AsyncTransformer<A, O> objectTransformer) {
+            definition.permit(action, to);
+            asyncTransitions.add(new AsyncTransition<>(guard, objectTransformer));
+            return this;
+        }
+
+        public <A extends StateMachine.Action> StateBuilder permit(Class<A> action, S to, AsyncTransformer<A, O> objectTransformer) {
+            return permitIf(action, to, object -> ACCEPTED, objectTransformer);
+        }
+
+        public <A extends StateMachine.Action> StateBuilder permitIf(Class<A> action, S to, AsyncGuard<O> guard) {
+            return permitIf(action, to, guard, (a, object) -> CompletableFuture.completedFuture(object));
+        }
+
+        public <A extends StateMachine.Action> StateBuilder permit(Class<A> action, S to) {
+            return permitIf(action, to, object -> ACCEPTED);
+        }
+
+        /**
+         * See {@link StateMachine.StateBuilder#permitAfter(Duration, Enum, BiFunction)}.
+         */
+        public StateBuilder permitAfter(Duration timeout, S to, AsyncTransformer<StateMachine.TimeoutAction, O> objectTransformer) {
+            definition.permitAfter(timeout, to);
+            asyncTransitions.add(new AsyncTransition<>(object -> ACCEPTED, objectTransformer));
+            return this;
+        }
+
+        public StateBuilder permitAfter(Duration timeout, S to) {
+            return permitAfter(timeout, to, (a, object) -> CompletableFuture.completedFuture(object));
+        }
+    }
+
+    // transitions are defined only through async builder, so their ids index async guards and transformers
+    private final StateMachine<S, O> definition;
+    private final List<AsyncTransition<?>> asyncTransitions = Lists.newArrayList();
+    private int guardConcurrency = 1;
+
+    AsyncStateMachine(String machineName, Function<O, S> stateExtractor,
+                      BiFunction<O, S, O> stateApplier, Function<O, String> idProvider) {
+        this.definition = new StateMachine<S, O>(machineName, stateExtractor, stateApplier, idProvider) {
+        };
+    }
+
+    StateBuilder fromState(S from) {
+        return new StateBuilder(from);
+    }
+
+    /**
+     * Sets number of guards evaluated concurrently, should be called before machine is frozen.
+     * By default guards are evaluated one by one.
+     */
+    public void setGuardConcurrency(int guardConcurrency) {
+        Preconditions.checkState(!definition.isFrozen(), "State machine %s is frozen", getMachineName());
+        Preconditions.checkArgument(guardConcurrency > 0, "Guard concurrency should be positive: %s", guardConcurrency);
+        this.guardConcurrency = guardConcurrency;
+    }
+
+    /**
+     * Rejects any further definitions, machine is frozen implicitly on first transition.
+     */
+    public void freeze() {
+        definition.freeze();
+    }
+
+    public boolean isFrozen() {
+        return definition.isFrozen();
+    }
+
+    public String getMachineName() {
+        return definition.getMachineName();
+    }
+
+    public String getObjectId(O object) {
+        return definition.getObjectId(object);
+    }
+
+    public Optional<Duration> getTimeout(S state) {
+        return definition.getTimeout(state);
+    }
+
+    /**
+     * @return stage completed with transitioned object or empty if no guard accepted
+     */
+    public CompletionStage<Optional<O>> transition(O inputObject, StateMachine.Action action) {
+        final StateMachine<S, O>.Transition<?>[] candidates = definition.candidates(inputObject, action);
+        if (candidates.length == 0) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return new Evaluation(inputObject, candidates).start().thenCompose(transition -> {
+            if (transition == null) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+            return asyncTransitions.get(transition.id)
+                    .apply(transition, action, definition.enter(transition, inputObject))
+                    .thenApply(Optional::of);
+        });
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.octo47.yasm;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention statistics of atomic transitions of a {@link StateMachine},
+ * see {@link StateMachine#transitionAtomically(java.util.concurrent.atomic.AtomicReference, StateMachine.Action)}.
+ */
+public final class AtomicTransitionStats {
+    private final LongAdder published = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAccumulator maxRetries = new LongAccumulator(Math::max, 0);
+
+    AtomicTransitionStats() {
+    }
+
+    void record(int retries, boolean found) {
+        if (found) {
+            published.increment();
+        } else {
+            notFound.increment();
+        }
+        if (retries > 0) {
+            contended.increment();
+            this.retries.add(retries);
+            maxRetries.accumulate(retries);
+        }
+    }
+
+    void exhausted(int retries) {
+        exhausted.increment();
+        contended.increment();
+        this.retries.add(retries);
+        maxRetries.accumulate(retries);
+    }
+
+    /**
+     * @return number of published transitions
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getNotFound() {
+        return notFound.sum();
+    }
+
+    /**
+     * @return number of atomic transitions which gave up after running out of attempts
+     */
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    /**
+     * @return number of atomic transitions which lost at least one compare-and-set
+     */
+    public long getContended() {
+        return contended.sum();
+    }
+
+    /**
+     * @return total number of recomputed transitions
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getMaxRetries() {
+        return maxRetries.get();
+    }
+
+    /**
+     * @return share of atomic transitions which lost at least one compare-and-set
+     */
+    public double getContentionRate() {
+        final long total = getPublished() + getNotFound() + getExhausted();
+        return total == 0 ? 0 : (double) getContended() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "AtomicTransitionStats{" +
+                "published=" + getPublished() +
+                ", notFound=" + getNotFound() +
+                ", exhausted=" + getExhausted() +
+                ", contended=" + getContended() +
+                ", retries=" + getRetries() +
+                ", maxRetries=" + getMaxRetries() +
+                '}';
+    }
+}
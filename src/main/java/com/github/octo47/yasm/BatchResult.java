@@ -0,0 +1,83 @@
+package com.github.octo47.yasm;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of {@link StateMachine#transitionAll(java.util.Collection, StateMachine.Action)}:
+ * transitioned object for every input, in input order, or null if no transition found.
+ * Inputs are an immutable copy taken before transitions started.
+ */
+public class BatchResult<O> {
+
+    private final List<O> inputs;
+    private final Object[] results;
+
+    BatchResult(List<O> inputs, Object[] results) {
+        this.inputs = inputs;
+        this.results = results;
+    }
+
+    public int size() {
+        return inputs.size();
+    }
+
+    public O getInput(int index) {
+        return inputs.get(index);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public O getResult(int index) {
+        return (O) results[index];
+    }
+
+    /**
+     * @return (input, result) pairs of transitioned objects in input order
+     */
+    public List<Pair<O, O>> getTransitioned() {
+        final ImmutableList.Builder<Pair<O, O>> transitioned = ImmutableList.builder();
+        for (int i = 0; i < results.length; i++) {
+            final O result = getResult(i);
+            if (result != null) {
+                transitioned.add(Pair.of(inputs.get(i), result));
+            }
+        }
+        return transitioned.build();
+    }
+
+    /**
+     * @return inputs with no matching transition in input order
+     */
+    public List<O> getUnmatched() {
+        final ImmutableList.Builder<O> unmatched = ImmutableList.builder();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                unmatched.add(inputs.get(i));
+            }
+        }
+        return unmatched.build();
+    }
+
+    public int getTransitionedCount() {
+        int count = 0;
+        for (Object result : results) {
+            if (result != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "size=" + size() +
+                ", transitioned=" + getTransitionedCount() +
+                '}';
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.octo47.yasm;
+
+import java.util.function.BinaryOperator;
+
+import javax.annotation.Nullable;
+
+/**
+ * Policy collapsing an action with the last pending action of the same class for the same object,
+ * see {@link StateMachineRuntime#conflate(Class, Conflation)}. Only actions which were not started
+ * yet are conflated and only when they are adjacent, so order of other actions is kept.
+ */
+@FunctionalInterface
+public interface Conflation<A extends StateMachine.Action> {
+
+    /**
+     * @return action replacing pending one or null if both should be applied
+     */
+    @Nullable
+    A conflate(A pending, A next);
+
+    /**
+     * Drops action equal to pending one.
+     */
+    static <A extends StateMachine.Action> Conflation<A> dropDuplicates() {
+        return (pending, next) -> pending.equals(next) ? pending : null;
+    }
+
+    /**
+     * Replaces pending action with the latest one.
+     */
+    static <A extends StateMachine.Action> Conflation<A> keepLatest() {
+        return (pending, next) -> next;
+    }
+
+    /**
+     * Replaces pending action with merge of pending and latest ones.
+     */
+    static <A extends StateMachine.Action> Conflation<A> merging(BinaryOperator<A> merge) {
+        return merge::apply;
+    }
+}
@@ -0,0 +1,280 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.math.IntMath;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Always-on recorder keeping last transitions in fixed size rings of compact binary records:
+ * timestamp, entity hash, from and to ordinals, action id, outcome, guard verdicts (matched
+ * candidate and number of rejected guards) and duration. Rings are
+ * striped by thread and written without locks. Recorder is a {@link TransitionRecorder}, so
+ * transitions keep their fast paths and nothing is allocated per transition. Entity hash is
+ * computed by function given by caller, which should not allocate either (e.g. hash of an
+ * int id or of a cached String key), it is {@link System#identityHashCode(Object)} by default.
+ * <p>
+ * Records are decoded only by {@link #dump()}, which can be called at any time, and are dumped
+ * to the error listener when transition fails. Records overwritten while being read are skipped.
+ */
+public class FlightRecorder<S extends Enum<S>, O> implements TransitionRecorder<S, O> {
+
+    public enum Outcome {
+        COMPLETE, NOTFOUND, ERROR
+    }
+
+    // record layout: timestamp, entity hash | action id, from | to | outcome | matched | rejected, duration, sequence
+    private static final int RECORD_LONGS = 5;
+    private static final int NO_STATE = 0xFFFF;
+    // matched candidate is stored shifted by 2, so MEMOIZED and -1 fit unsigned byte
+    private static final int MAX_MATCHED = 0xFF - 2;
+    private static final int MAX_REJECTED = 0xFFFF;
+
+    private static final class Stripe {
+        private final AtomicLongArray records;
+        private final AtomicLong cursor = new AtomicLong();
+
+        private Stripe(int capacity) {
+            this.records = new AtomicLongArray(capacity * RECORD_LONGS);
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int capacity;
+    private final ToIntFunction<O> entityHash;
+    private final Consumer<List<Record<S>>> errorListener;
+    private final List<Class<?>> actionClasses = new CopyOnWriteArrayList<>();
+    private final ClassValue<Integer> actionIds = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            synchronized (actionClasses) {
+                final int id = actionClasses.indexOf(type);
+                if (id >= 0) {
+                    return id;
+                }
+                actionClasses.add(type);
+                return actionClasses.size() - 1;
+            }
+        }
+    };
+    @Nullable
+    private volatile S[] states;
+
+    public FlightRecorder(int stripes, int capacity) {
+        this(stripes, capacity, records -> {
+        });
+    }
+
+    public FlightRecorder(int stripes, int capacity, Consumer<List<Record<S>>> errorListener) {
+        this(stripes, capacity, System::identityHashCode, errorListener);
+    }
+
+    /**
+     * @param stripes       number of rings, rounded up to power of two
+     * @param capacity      records per ring
+     * @param entityHash    hash identifying entity of transitioned object
+     * @param errorListener receives {@link #dump()} when transition fails
+     */
+    public FlightRecorder(int stripes, int capacity, ToIntFunction<O> entityHash, Consumer<List<Record<S>>> errorListener) {
+        Preconditions.checkArgument(stripes > 0, "Number of stripes should be positive: %s", stripes);
+        Preconditions.checkArgument(capacity > 0, "Capacity should be positive: %s", capacity);
+        this.stripes = new Stripe[IntMath.ceilingPowerOfTwo(stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe(capacity);
+        }
+        this.capacity = capacity;
+        this.entityHash = entityHash;
+        this.errorListener = errorListener;
+    }
+
+    @Override
+    public void onTransition(O input, S fromState, @Nullable S toState, StateMachine.Action action,
+                             int matched, int rejected, long startedNanos) {
+        if (toState != null) {
+            record(input, fromState, toState.ordinal(), action, Outcome.COMPLETE, matched, rejected, startedNanos);
+        } else {
+            record(input, fromState, NO_STATE, action, Outcome.NOTFOUND, matched, rejected, startedNanos);
+        }
+    }
+
+    @Override
+    public void onError(O input, S fromState, StateMachine.Action action, long startedNanos, RuntimeException error) {
+        record(input, fromState, NO_STATE, action, Outcome.ERROR, -1, 0, startedNanos);
+        errorListener.accept(dump());
+    }
+
+    /**
+     * @return records currently kept in all rings, oldest first
+     */
+    public List<Record<S>> dump() {
+        final S[] states = this.states;
+        if (states == null) {
+            return ImmutableList.of();
+        }
+        final List<Record<S>> records = Lists.newArrayList();
+        final long[] fields = new long[RECORD_LONGS - 1];
+        for (Stripe stripe : stripes) {
+            for (int slot = 0; slot < capacity; slot++) {
+                final int base = slot * RECORD_LONGS;
+                final long sequence = stripe.records.get(base + RECORD_LONGS - 1);
+                if (sequence == 0) {
+                    continue;
+                }
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = stripe.records.get(base + i);
+                }
+                if (stripe.records.get(base + RECORD_LONGS - 1) == sequence) {
+                    records.add(decode(states, sequence, fields));
+                }
+            }
+        }
+        records.sort(Comparator.comparingLong(Record<S>::getTimestamp).thenComparingLong(Record::getSequence));
+        return records;
+    }
+
+    public int getCapacity() {
+        return capacity * stripes.length;
+    }
+
+    private void record(O input, S fromState, int to, StateMachine.Action action, Outcome outcome,
+                        int matched, int rejected, long started) {
+        if (states == null) {
+            states = fromState.getDeclaringClass().getEnumConstants();
+        }
+        final Stripe stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        final long sequence = stripe.cursor.getAndIncrement();
+        final int base = (int) (sequence % capacity) * RECORD_LONGS;
+        final AtomicLongArray records = stripe.records;
+        // invalidate slot first, so readers never mix fields of two records
+        records.set(base + RECORD_LONGS - 1, 0);
+        records.lazySet(base, System.currentTimeMillis());
+        records.lazySet(base + 1, (long) entityHash.applyAsInt(input) << 32 | actionIds.get(action.getClass()));
+        records.lazySet(base + 2, (long) fromState.ordinal() << 48 | (long) to << 32 | (long) outcome.ordinal() << 24 |
+                (long) (Math.min(matched, MAX_MATCHED) + 2) << 16 | Math.min(rejected, MAX_REJECTED));
+        records.lazySet(base + 3, System.nanoTime() - started);
+        records.lazySet(base + RECORD_LONGS - 1, sequence + 1);
+    }
+
+    private Record<S> decode(S[] states, long sequence, long[] fields) {
+        final int to = (int) (fields[2] >>> 32) & 0xFFFF;
+        return new Record<>(
+                sequence - 1,
+                fields[0],
+                (int) (fields[1] >>> 32),
+                actionClasses.get((int) fields[1]),
+                states[(int) (fields[2] >>> 48)],
+                to == NO_STATE ? null : states[to],
+                Outcome.values()[(int) (fields[2] >>> 24) & 0xFF],
+                ((int) (fields[2] >>> 16) & 0xFF) - 2,
+                (int) fields[2] & MAX_REJECTED,
+                fields[3]);
+    }
+
+    public static final class Record<S> {
+        private final long sequence;
+        private final long timestamp;
+        private final int entityHash;
+        private final Class<?> actionClass;
+        private final S from;
+        @Nullable
+        private final S to;
+        private final Outcome outcome;
+        private final int matched;
+        private final int rejected;
+        private final long durationNanos;
+
+        private Record(long sequence, long timestamp, int entityHash, Class<?> actionClass, S from, @Nullable S to,
+                       Outcome outcome, int matched, int rejected, long durationNanos) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.entityHash = entityHash;
+            this.actionClass = actionClass;
+            this.from = from;
+            this.to = to;
+            this.outcome = outcome;
+            this.matched = matched;
+            this.rejected = rejected;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * @return sequence number of the record within its ring
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return epoch millis of transition end
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return entity hash computed by function given to recorder
+         */
+        public int getEntityHash() {
+            return entityHash;
+        }
+
+        public Class<?> getActionClass() {
+            return actionClass;
+        }
+
+        public S getFrom() {
+            return from;
+        }
+
+        /**
+         * @return target state or null for NOTFOUND and ERROR outcomes
+         */
+        @Nullable
+        public S getTo() {
+            return to;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return index of accepted candidate, -1 if none accepted (or ERROR) or
+         * {@link TransitionRecorder#MEMOIZED}, see {@link TransitionRecorder#onTransition}
+         */
+        public int getMatched() {
+            return matched;
+        }
+
+        /**
+         * @return number of rejected guards
+         */
+        public int getRejected() {
+            return rejected;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + " " + Integer.toHexString(entityHash) + " " + from +
+                    " -(" + actionClass.getSimpleName() + ")-> " + to +
+                    " " + outcome +
+                    " matched=" + matched +
+                    " rejected=" + rejected +
+                    " durationNanos=" + durationNanos;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.octo47.yasm;
+
+/**
+ * Observed guard statistics of a candidate transition in adaptive ordering mode,
+ * see {@link StateMachine#enableAdaptiveOrdering(int)}.
+ */
+public final class GuardStats<S> {
+    private final S from;
+    private final Class<?> actionClass;
+    private final S to;
+    private final long evaluations;
+    private final long passes;
+    private final double meanCostNanos;
+
+    GuardStats(S from, Class<?> actionClass, S to, long evaluations, long passes, double meanCostNanos) {
+        this.from = from;
+        this.actionClass = actionClass;
+        this.to = to;
+        this.evaluations = evaluations;
+        this.passes = passes;
+        this.meanCostNanos = meanCostNanos;
+    }
+
+    /**
+     * @return state transition is defined in, ancestor for inherited transitions
+     */
+    public S getFrom() {
+        return from;
+    }
+
+    public Class<?> getActionClass() {
+        return actionClass;
+    }
+
+    public S getTo() {
+        return to;
+    }
+
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    public long getPasses() {
+        return passes;
+    }
+
+    /**
+     * @return share of evaluations guard accepted, smoothed to stay above zero for never evaluated guards
+     */
+    public double getPassRate() {
+        return (passes + 1.0) / (evaluations + 2.0);
+    }
+
+    /**
+     * @return mean sampled guard evaluation time or 0 if there are no samples yet
+     */
+    public double getMeanCostNanos() {
+        return meanCostNanos;
+    }
+
+    @Override
+    public String toString() {
+        return from + " -(" + actionClass.getSimpleName() + ")-> " + to +
+                "{evaluations=" + evaluations +
+                ", passes=" + passes +
+                ", meanCostNanos=" + meanCostNanos +
+                '}';
+    }
+}
@@ -0,0 +1,296 @@
+package com.github.octo47.yasm;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Event sourced store of machine objects. Every applied transition is appended to
+ * {@link TransitionJournal} as (entity id, action type id, action payload) record,
+ * snapshots of current objects are written periodically. On open store loads latest
+ * snapshot and replays only journal tail through the machine, so machine transitions
+ * should be deterministic. Journal tail is replayed in parallel with {@link ReplayEngine}.
+ * <p>
+ * Snapshot doesn't stop traffic: it remembers journal position at start and every object
+ * keeps position of its last record, so records already reflected in the snapshot
+ * are skipped during replay.
+ */
+public class JournaledStore<S extends Enum<S>, O> implements Closeable {
+
+    // reserved type ids of store records
+    static final int PUT = -1;
+    static final int REMOVE = -2;
+
+    private static final int SNAPSHOT_MAGIC = 0x5941534d;
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final class Entry<O> {
+        private final O object;
+        private final long position;
+
+        private Entry(O object, long position) {
+            this.object = object;
+            this.position = position;
+        }
+    }
+
+    private final StateMachine<S, O> machine;
+    private final TransitionJournal journal;
+    private final ActionCodec actionCodec;
+    private final ObjectCodec<O> objectCodec;
+    private final boolean syncOnWrite;
+    private final Map<String, Entry<O>> objects = new ConcurrentHashMap<>();
+    // writers share the lock, snapshot takes it exclusively to get position without writes in flight
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final ReplayProgress recovery;
+
+    public JournaledStore(StateMachine<S, O> machine, TransitionJournal journal,
+                          ActionCodec actionCodec, ObjectCodec<O> objectCodec) throws IOException {
+        this(machine, journal, actionCodec, objectCodec, true, new ReplayEngine());
+    }
+
+    /**
+     * @param syncOnWrite wait for group commit of every written record
+     * @param replayEngine engine to replay journal tail with
+     */
+    public JournaledStore(StateMachine<S, O> machine, TransitionJournal journal,
+                          ActionCodec actionCodec, ObjectCodec<O> objectCodec,
+                          boolean syncOnWrite, ReplayEngine replayEngine) throws IOException {
+        this.machine = machine;
+        this.journal = journal;
+        this.actionCodec = actionCodec;
+        this.objectCodec = objectCodec;
+        this.syncOnWrite = syncOnWrite;
+        this.recovery = recover(replayEngine);
+    }
+
+    public Optional<O> get(String id) {
+        final Entry<O> entry = objects.get(id);
+        return entry == null ? Optional.empty() : Optional.of(entry.object);
+    }
+
+    /**
+     * @return progress of journal replay done when store was opened
+     */
+    public ReplayProgress getRecovery() {
+        return recovery;
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    public void put(O object) {
+        final String id = machine.getObjectId(object);
+        final long position = write(() -> {
+            final long[] appended = new long[1];
+            objects.compute(id, (key, entry) -> {
+                appended[0] = journal.append(key, PUT, objectCodec.encode(object));
+                return new Entry<>(object, appended[0]);
+            });
+            return appended[0];
+        });
+        sync(position);
+    }
+
+    public void remove(String id) {
+        final long position = write(() -> {
+            final long[] appended = {-1};
+            objects.computeIfPresent(id, (key, entry) -> {
+                appended[0] = journal.append(key, REMOVE, new byte[0]);
+                return null;
+            });
+            return appended[0];
+        });
+        sync(position);
+    }
+
+    /**
+     * Applies action to the current object with given id, journaling action if transition happened.
+     *
+     * @return new object or empty if there is no such object or no transition found
+     */
+    public Optional<O> transition(String id, StateMachine.Action action) {
+        final Object[] result = new Object[1];
+        final long position = write(() -> {
+            final long[] appended = {-1};
+            objects.computeIfPresent(id, (key, entry) -> {
+                final O transitioned = machine.transitionOrNull(entry.object, action);
+                if (transitioned == null) {
+                    return entry;
+                }
+                appended[0] = journal.append(key, actionCodec.typeId(action), actionCodec.encode(action));
+                result[0] = transitioned;
+                return new Entry<>(transitioned, appended[0]);
+            });
+            return appended[0];
+        });
+        sync(position);
+        @SuppressWarnings("unchecked") final O transitioned = (O) result[0];
+        return Optional.ofNullable(transitioned);
+    }
+
+    /**
+     * Writes snapshot of current objects and drops journal segments not needed for recovery anymore.
+     *
+     * @return journal position snapshot was taken at
+     */
+    public long snapshot() throws IOException {
+        final long position;
+        snapshotLock.writeLock().lock();
+        try {
+            position = journal.position();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        final Path snapshot = snapshotPath(position);
+        final Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(position);
+            for (Map.Entry<String, Entry<O>> entry : objects.entrySet()) {
+                final byte[] bytes = objectCodec.encode(entry.getValue().object);
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().position);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeBoolean(false);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        for (long older : snapshots()) {
+            if (older < position) {
+                Files.deleteIfExists(snapshotPath(older));
+            }
+        }
+        journal.truncateBefore(position);
+        return position;
+    }
+
+    public ScheduledFuture<?> scheduleSnapshots(ScheduledExecutorService executor, Duration interval) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    private ReplayProgress recover(ReplayEngine replayEngine) throws IOException {
+        final List<Long> snapshots = snapshots();
+        long position = journal.firstPosition();
+        if (!snapshots.isEmpty()) {
+            position = loadSnapshot(snapshotPath(snapshots.get(snapshots.size() - 1)));
+        }
+        return replayEngine.replay(journal, position, this::replay, progress -> {
+        });
+    }
+
+    // called concurrently for different ids
+    private void replay(long position, String id, int typeId, byte[] payload) {
+        final Entry<O> entry = objects.get(id);
+        if (entry != null && entry.position >= position) {
+            // already in snapshot
+            return;
+        }
+        if (typeId == PUT) {
+            objects.put(id, new Entry<>(objectCodec.decode(payload), position));
+        } else if (typeId == REMOVE) {
+            objects.remove(id);
+        } else if (entry != null) {
+            final O transitioned = machine.transitionUntraced(entry.object, actionCodec.decode(typeId, payload));
+            if (transitioned != null) {
+                objects.put(id, new Entry<>(transitioned, position));
+            }
+        }
+    }
+
+    private long loadSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + snapshot);
+            }
+            final long position = in.readLong();
+            while (in.readBoolean()) {
+                final String id = in.readUTF();
+                final long entryPosition = in.readLong();
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                objects.put(id, new Entry<>(objectCodec.decode(bytes), entryPosition));
+            }
+            return position;
+        }
+    }
+
+    private long write(WriteOperation operation) {
+        snapshotLock.readLock().lock();
+        try {
+            return operation.write();
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private interface WriteOperation {
+        // returns position of written record or -1
+        long write();
+    }
+
+    private void sync(long position) {
+        if (syncOnWrite && position >= 0) {
+            journal.sync(position);
+        }
+    }
+
+    private Path snapshotPath(long position) {
+        return journal.getDirectory().resolve(String.format("%019d%s", position, SNAPSHOT_SUFFIX));
+    }
+
+    private List<Long> snapshots() throws IOException {
+        final List<Long> snapshots = Lists.newArrayList();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(journal.getDirectory(), "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                snapshots.add(Long.parseLong(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    public StateMachine<S, O> getMachine() {
+        return machine;
+    }
+}
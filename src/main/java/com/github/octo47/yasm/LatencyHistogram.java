@@ -0,0 +1,138 @@
+package com.github.octo47.yasm;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free log-linear histogram of nanosecond latencies in HDR histogram fashion:
+ * values are grouped by power of two and each group is split to 2^{@value #SUB_BITS}
+ * linear sub-buckets, so relative error stays under 1/16. Values above 2^{@value #MAX_BITS}
+ * nanoseconds are accounted in the last bucket.
+ * <p>
+ * Buckets are {@link LongAdder}s created on first use, so threads recording the same latencies
+ * don't contend on a shared counter, and buckets never hit cost nothing.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = SUB + (MAX_BITS - SUB_BITS) * SUB;
+
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKETS);
+
+    public void record(long nanos) {
+        final int bucket = bucket(nanos);
+        LongAdder count = counts.get(bucket);
+        if (count == null) {
+            counts.compareAndSet(bucket, null, new LongAdder());
+            count = counts.get(bucket);
+        }
+        count.increment();
+    }
+
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            final LongAdder count = counts.get(i);
+            copy[i] = count != null ? count.sum() : 0;
+        }
+        return new Snapshot(copy);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        final int bucket = SUB + shift * SUB + (int) (nanos >>> shift) - SUB;
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        final int shift = (bucket - SUB) / SUB;
+        return (long) (SUB + (bucket - SUB) % SUB) << shift;
+    }
+
+    static long upperBound(int bucket) {
+        return bucket + 1 < BUCKETS ? lowerBound(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Immutable copy of histogram counts.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            this.count = count;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return upper bound of bucket containing given percentile (0..100) or 0 for empty histogram
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return approximate mean, taking middle of every bucket
+         */
+        public double getMean() {
+            if (count == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    final double middle = i + 1 < counts.length ? (lowerBound(i) + upperBound(i)) / 2.0 : lowerBound(i);
+                    sum += counts[i] * middle;
+                }
+            }
+            return sum / count;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count +
+                    ", p50=" + getValueAtPercentile(50) +
+                    ", p99=" + getValueAtPercentile(99) +
+                    ", p999=" + getValueAtPercentile(99.9) +
+                    ", max=" + getMax() +
+                    '}';
+        }
+    }
+}
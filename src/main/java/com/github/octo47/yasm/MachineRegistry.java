@@ -0,0 +1,159 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.time.Duration;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * Flyweight registry of tenant variants of the same machine differing only in parameters.
+ * Machine template is built and frozen once, its guards and transformers read parameters
+ * of the tenant doing transition from supplier given to template factory. Tenant keeps only
+ * its id and parameters, all tenants share template dispatch tables.
+ * <p>
+ * Tenants are loaded lazily on first access and evicted when idle or when there are too many
+ * of them. Transitions should go through {@link Tenant}, which binds its parameters to the calling
+ * thread for the duration of transition. Binding doesn't cross threads, so template is rejected by
+ * {@link StateMachine#transitionAll}, {@link StateMachineRuntime}, {@link TransitionProcessor} and
+ * {@link ReplayEngine}, which transition objects in other threads, and by {@link TimeoutScheduler},
+ * which fires timeouts outside of tenant binding. Results depend on
+ * tenant parameters, so template should not enable memoization.
+ */
+public class MachineRegistry<S extends Enum<S>, O, P> {
+
+    public static final class Tenant<S extends Enum<S>, O, P> {
+        private final MachineRegistry<S, O, P> registry;
+        private final String id;
+        private final P parameters;
+
+        private Tenant(MachineRegistry<S, O, P> registry, String id, P parameters) {
+            this.registry = registry;
+            this.id = id;
+            this.parameters = parameters;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public P getParameters() {
+            return parameters;
+        }
+
+        public Optional<O> transition(O inputObject, StateMachine.Action action) {
+            return Optional.ofNullable(transitionOrNull(inputObject, action));
+        }
+
+        @Nullable
+        public O transitionOrNull(O inputObject, StateMachine.Action action) {
+            final Binding<P> binding = registry.binding.get();
+            final P previous = binding.parameters;
+            binding.parameters = parameters;
+            try {
+                return registry.template.transitionOrNull(inputObject, action);
+            } finally {
+                binding.parameters = previous;
+            }
+        }
+
+        public Optional<O> loop(O inputObject) {
+            return transition(inputObject, StateMachine.LOOP);
+        }
+
+        @Override
+        public String toString() {
+            return "Tenant{" +
+                    "id='" + id + '\'' +
+                    ", parameters=" + parameters +
+                    '}';
+        }
+    }
+
+    // parameters of tenant doing transition in current thread
+    private static final class Binding<P> {
+        @Nullable
+        private P parameters;
+    }
+
+    private final ThreadLocal<Binding<P>> binding = ThreadLocal.withInitial(Binding::new);
+    private final StateMachine<S, O> template;
+    private final Function<String, P> parameterLoader;
+    private final Cache<String, Tenant<S, O, P>> tenants;
+
+    /**
+     * @param templateFactory builds machine template reading tenant parameters from given supplier
+     * @param parameterLoader loads parameters of tenant with given id
+     * @param maximumTenants  maximum number of loaded tenants
+     * @param idleTimeout     tenants not accessed for that long are evicted
+     */
+    public MachineRegistry(Function<Supplier<P>, StateMachine<S, O>> templateFactory, Function<String, P> parameterLoader,
+                           long maximumTenants, Duration idleTimeout) {
+        this.template = templateFactory.apply(this::boundParameters);
+        Preconditions.checkArgument(!template.isMemoized(),
+                                    "Template %s should not memoize transitions, results depend on tenant parameters",
+                                    template.getMachineName());
+        template.confineToCallingThread();
+        this.parameterLoader = parameterLoader;
+        this.tenants = CacheBuilder.newBuilder()
+                .maximumSize(maximumTenants)
+                .expireAfterAccess(idleTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                .recordStats()
+                .build();
+        template.freeze();
+    }
+
+    /**
+     * @return tenant with given id, loading its parameters if tenant is not loaded yet
+     * @throws IllegalStateException if loader failed or returned no parameters
+     */
+    public Tenant<S, O, P> tenant(String id) {
+        try {
+            return tenants.get(id, () -> {
+                final P parameters = parameterLoader.apply(id);
+                if (parameters == null) {
+                    throw new NoSuchElementException("No parameters loaded for tenant " + id);
+                }
+                return new Tenant<>(this, id, parameters);
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("Failed to load tenant " + id, e.getCause());
+        }
+    }
+
+    public void evict(String id) {
+        tenants.invalidate(id);
+    }
+
+    /**
+     * @return number of loaded tenants
+     */
+    public long size() {
+        return tenants.size();
+    }
+
+    public CacheStats stats() {
+        return tenants.stats();
+    }
+
+    public StateMachine<S, O> getTemplate() {
+        return template;
+    }
+
+    private P boundParameters() {
+        final P parameters = binding.get().parameters;
+        Preconditions.checkState(parameters != null, "No tenant bound, transitions of %s should go through tenant",
+                                 template.getMachineName());
+        return parameters;
+    }
+}
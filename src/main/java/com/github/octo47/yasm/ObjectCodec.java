@@ -0,0 +1,11 @@
+package com.github.octo47.yasm;
+
+/**
+ * Encodes state objects for snapshots of {@link JournaledStore}.
+ */
+public interface ObjectCodec<O> {
+
+    byte[] encode(O object);
+
+    O decode(byte[] bytes);
+}
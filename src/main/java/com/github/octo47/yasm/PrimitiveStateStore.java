@@ -0,0 +1,240 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Store of many tiny entities, each having only a state and few long fields. Entities are
+ * addressed by dense int id and kept in primitive arrays, no object per entity is retained,
+ * so millions of entities cost a few bytes each and nothing for GC to trace.
+ * <p>
+ * Entities are driven by usual {@link StateMachine} definitions over {@link Entity} cursor:
+ * <pre>
+ * class Session extends StateMachine&lt;State, PrimitiveStateStore.Entity&lt;State&gt;&gt; {
+ *     Session() {
+ *         super("Session", Entity::getState, Entity::withState, Entity::getKey);
+ *         fromState(State.Idle).permit(Login.class, State.Active, (login, e) -&gt; e.withLong(USER, login.getUser()));
+ *     }
+ * }
+ * </pre>
+ * Cursor writes through to the store, so transformers are applied in place once a transition
+ * is found and memoization should not be enabled for such machines.
+ * <p>
+ * Transitions of the same entity should be serialized by caller, different entities can be
+ * transitioned concurrently. Census counters are exact, scans see entities without
+ * synchronization with concurrent transitions.
+ */
+public class PrimitiveStateStore<S extends Enum<S>> {
+
+    /**
+     * Cursor over entity of the store, created per transition and never retained by the store.
+     * Fails with {@link IllegalArgumentException} once entity is removed.
+     */
+    public static final class Entity<S extends Enum<S>> {
+        private final PrimitiveStateStore<S> store;
+        private final int id;
+        @Nullable
+        private String key;
+
+        private Entity(PrimitiveStateStore<S> store, int id) {
+            this.store = store;
+            this.id = id;
+        }
+
+        /**
+         * @return entity id, cheaper than {@link #getKey()} for hashing, e.g. by {@link FlightRecorder}
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * @return id as string, built once per cursor
+         */
+        public String getKey() {
+            if (key == null) {
+                key = Integer.toString(id);
+            }
+            return key;
+        }
+
+        public S getState() {
+            store.checkEntity(id);
+            return store.states[store.ordinals[id] - 1];
+        }
+
+        public long getLong(int field) {
+            return store.getLong(id, field);
+        }
+
+        public Entity<S> withLong(int field, long value) {
+            store.setLong(id, field, value);
+            return this;
+        }
+
+        public Entity<S> withState(S state) {
+            store.setState(id, state);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Entity{" +
+                    "id=" + id +
+                    ", state=" + store.getState(id) +
+                    '}';
+        }
+    }
+
+    private final S[] states;
+    // state ordinal + 1 by entity id, 0 for absent entity
+    private final short[] ordinals;
+    // fields of entity id are stored at [id * fields, (id + 1) * fields)
+    private final long[] values;
+    private final int fields;
+    private final LongAdder[] census;
+
+    public PrimitiveStateStore(Class<S> stateClass, int capacity, int fields) {
+        Preconditions.checkArgument(capacity > 0, "Capacity should be positive: %s", capacity);
+        Preconditions.checkArgument(fields >= 0, "Number of fields should not be negative: %s", fields);
+        Preconditions.checkArgument((long) capacity * fields <= Integer.MAX_VALUE,
+                "Too many fields for capacity %s: %s", capacity, fields);
+        this.states = stateClass.getEnumConstants();
+        Preconditions.checkArgument(states.length < Short.MAX_VALUE, "Too many states: %s", states.length);
+        this.ordinals = new short[capacity];
+        this.values = new long[capacity * fields];
+        this.fields = fields;
+        this.census = new LongAdder[states.length];
+        for (int i = 0; i < census.length; i++) {
+            census[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Adds entity with given id in given state, all its fields are zero.
+     */
+    public void add(int id, S state) {
+        Preconditions.checkState(ordinals[id] == 0, "Entity %s already exists", id);
+        for (int i = id * fields; i < (id + 1) * fields; i++) {
+            values[i] = 0;
+        }
+        ordinals[id] = (short) (state.ordinal() + 1);
+        census[state.ordinal()].increment();
+    }
+
+    /**
+     * @return removed entity state or null if there was no such entity
+     */
+    @Nullable
+    public S remove(int id) {
+        final int ordinal = ordinals[id];
+        if (ordinal == 0) {
+            return null;
+        }
+        ordinals[id] = 0;
+        census[ordinal - 1].decrement();
+        return states[ordinal - 1];
+    }
+
+    public boolean contains(int id) {
+        return ordinals[id] != 0;
+    }
+
+    @Nullable
+    public S getState(int id) {
+        final int ordinal = ordinals[id];
+        return ordinal == 0 ? null : states[ordinal - 1];
+    }
+
+    public long getLong(int id, int field) {
+        checkEntity(id);
+        Preconditions.checkElementIndex(field, fields);
+        return values[id * fields + field];
+    }
+
+    public void setLong(int id, int field, long value) {
+        checkEntity(id);
+        Preconditions.checkElementIndex(field, fields);
+        values[id * fields + field] = value;
+    }
+
+    /**
+     * Applies action to entity with given id.
+     *
+     * @return false if there is no such entity, no transition found or entity was removed by transition
+     */
+    public boolean transition(StateMachine<S, Entity<S>> machine, int id, StateMachine.Action action) {
+        if (ordinals[id] == 0) {
+            return false;
+        }
+        // transformers may remove entity, e.g. when it reaches final state
+        return machine.transitionOrNull(new Entity<>(this, id), action) != null && ordinals[id] != 0;
+    }
+
+    /**
+     * @return number of entities in given state
+     */
+    public long count(S state) {
+        return census[state.ordinal()].sum();
+    }
+
+    /**
+     * @return number of entities in every state
+     */
+    public Map<S, Long> census() {
+        final Map<S, Long> counts = new EnumMap<>(states[0].getDeclaringClass());
+        for (S state : states) {
+            counts.put(state, census[state.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * Calls consumer with ids of all entities in given state, in id order.
+     */
+    public void forEach(S state, IntConsumer consumer) {
+        final short ordinal = (short) (state.ordinal() + 1);
+        final short[] ordinals = this.ordinals;
+        for (int id = 0; id < ordinals.length; id++) {
+            if (ordinals[id] == ordinal) {
+                consumer.accept(id);
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (LongAdder count : census) {
+            size += count.sum();
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return ordinals.length;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    private void setState(int id, S state) {
+        final int ordinal = ordinals[id];
+        checkEntity(id);
+        if (ordinal - 1 != state.ordinal()) {
+            census[ordinal - 1].decrement();
+            census[state.ordinal()].increment();
+            ordinals[id] = (short) (state.ordinal() + 1);
+        }
+    }
+
+    private void checkEntity(int id) {
+        Preconditions.checkArgument(ordinals[id] != 0, "No entity %s", id);
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Replays {@link TransitionJournal} in parallel. Records are read in chunks and partitioned
+ * by entity id, partitions of a chunk are replayed on fork-join pool. Records of the same entity
+ * always land to the same partition and are replayed in journal order, so record consumer
+ * should only be safe for concurrent calls with different entity ids.
+ */
+public class ReplayEngine {
+
+    private static final class Record {
+        private final long position;
+        private final String entityId;
+        private final int typeId;
+        private final byte[] payload;
+
+        private Record(long position, String entityId, int typeId, byte[] payload) {
+            this.position = position;
+            this.entityId = entityId;
+            this.typeId = typeId;
+            this.payload = payload;
+        }
+    }
+
+    private final class Chunk implements TransitionJournal.RecordConsumer {
+        private final List<List<Record>> partitions = Lists.newArrayListWithCapacity(ReplayEngine.this.partitions);
+        private final TransitionJournal.RecordConsumer consumer;
+        private final ReplayProgress progress;
+        private final Consumer<ReplayProgress> listener;
+        private int buffered;
+
+        private Chunk(TransitionJournal.RecordConsumer consumer, ReplayProgress progress, Consumer<ReplayProgress> listener) {
+            this.consumer = consumer;
+            this.progress = progress;
+            this.listener = listener;
+            for (int i = 0; i < ReplayEngine.this.partitions; i++) {
+                partitions.add(Lists.newArrayList());
+            }
+        }
+
+        @Override
+        public void accept(long position, String entityId, int typeId, byte[] payload) {
+            partitions.get(partition(entityId)).add(new Record(position, entityId, typeId, payload));
+            if (++buffered == chunkSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+            for (int i = 0; i < partitions.size(); i++) {
+                final int partition = i;
+                final List<Record> records = partitions.get(partition);
+                if (!records.isEmpty()) {
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        for (Record record : records) {
+                            consumer.accept(record.position, record.entityId, record.typeId, record.payload);
+                        }
+                        progress.add(partition, records.size());
+                    }));
+                }
+            }
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+            for (List<Record> records : partitions) {
+                records.clear();
+            }
+            buffered = 0;
+            listener.accept(progress);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int partitions;
+    private final int chunkSize;
+
+    public ReplayEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ReplayEngine(ForkJoinPool pool) {
+        this(pool, pool.getParallelism() * 4, 64 * 1024);
+    }
+
+    public ReplayEngine(ForkJoinPool pool, int partitions, int chunkSize) {
+        Preconditions.checkArgument(partitions > 0, "At least one partition required: %s", partitions);
+        Preconditions.checkArgument(chunkSize > 0, "Chunk size should be positive: %s", chunkSize);
+        this.pool = pool;
+        this.partitions = partitions;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Replays journal records starting from given position.
+     *
+     * @param listener called with progress after every replayed chunk
+     */
+    public ReplayProgress replay(TransitionJournal journal, long from, TransitionJournal.RecordConsumer consumer,
+                                 Consumer<ReplayProgress> listener) throws IOException {
+        final ReplayProgress progress = new ReplayProgress(partitions);
+        final Chunk chunk = new Chunk(consumer, progress, listener);
+        journal.read(from, chunk);
+        chunk.flush();
+        progress.complete();
+        return progress;
+    }
+
+    /**
+     * Replays actions from journal over given objects through the machine, bypassing
+     * machine tracer. Records of {@link JournaledStore} (negative type ids) are skipped.
+     */
+    public <S extends Enum<S>, O> ReplayProgress replay(StateMachine<S, O> machine, ActionCodec codec,
+                                                        TransitionJournal journal, long from,
+                                                        ConcurrentMap<String, O> objects) throws IOException {
+        machine.checkNotThreadConfined("replay");
+        return replay(journal, from, (position, entityId, typeId, payload) -> {
+            final O object = objects.get(entityId);
+            if (object != null && typeId >= 0) {
+                final O transitioned = machine.transitionUntraced(object, codec.decode(typeId, payload));
+                if (transitioned != null) {
+                    objects.put(entityId, transitioned);
+                }
+            }
+        }, progress -> {
+        });
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    private int partition(String entityId) {
+        final int hash = entityId.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+}
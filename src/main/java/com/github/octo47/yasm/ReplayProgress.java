@@ -0,0 +1,71 @@
+package com.github.octo47.yasm;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Progress of {@link ReplayEngine}, safe to read while replay is running.
+ */
+public class ReplayProgress {
+
+    private final AtomicLongArray partitionRecords;
+    private final long startNanos;
+    private volatile long endNanos;
+
+    ReplayProgress(int partitions) {
+        this.partitionRecords = new AtomicLongArray(partitions);
+        this.startNanos = System.nanoTime();
+    }
+
+    void add(int partition, long records) {
+        partitionRecords.addAndGet(partition, records);
+    }
+
+    void complete() {
+        endNanos = System.nanoTime();
+    }
+
+    public boolean isComplete() {
+        return endNanos != 0;
+    }
+
+    public int getPartitions() {
+        return partitionRecords.length();
+    }
+
+    public long getRecords(int partition) {
+        return partitionRecords.get(partition);
+    }
+
+    public long getRecords() {
+        long records = 0;
+        for (int i = 0; i < partitionRecords.length(); i++) {
+            records += partitionRecords.get(i);
+        }
+        return records;
+    }
+
+    public Duration getElapsed() {
+        final long end = endNanos;
+        return Duration.ofNanos((end != 0 ? end : System.nanoTime()) - startNanos);
+    }
+
+    /**
+     * @return replayed records per second
+     */
+    public double getThroughput() {
+        final long nanos = getElapsed().toNanos();
+        return nanos == 0 ? 0 : getRecords() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayProgress{" +
+                "records=" + getRecords() +
+                ", partitions=" + getPartitions() +
+                ", elapsed=" + getElapsed() +
+                ", throughput=" + String.format("%.0f/s", getThroughput()) +
+                ", complete=" + isComplete() +
+                '}';
+    }
+}
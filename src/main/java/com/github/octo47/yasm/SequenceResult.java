@@ -0,0 +1,68 @@
+package com.github.octo47.yasm;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Outcome of {@link StateMachine#transitionSequence(Object, Iterable)}: object after the last
+ * applied action, index of the first action without transition and states object passed through.
+ */
+public class SequenceResult<S extends Enum<S>, O> {
+
+    private final O result;
+    private final int unmatchedIndex;
+    private final S initialState;
+    // state ordinals: initial state followed by state after every applied action
+    private final short[] trail;
+
+    SequenceResult(O result, int unmatchedIndex, S initialState, short[] trail) {
+        this.result = result;
+        this.unmatchedIndex = unmatchedIndex;
+        this.initialState = initialState;
+        this.trail = trail;
+    }
+
+    /**
+     * @return object after the last applied action, input object if none applied
+     */
+    public O getResult() {
+        return result;
+    }
+
+    /**
+     * @return index of the first action without transition or -1 if all actions were applied
+     */
+    public int getUnmatchedIndex() {
+        return unmatchedIndex;
+    }
+
+    public boolean isComplete() {
+        return unmatchedIndex < 0;
+    }
+
+    public int getApplied() {
+        return trail.length - 1;
+    }
+
+    /**
+     * @return initial state followed by state after every applied action
+     */
+    public List<S> getTrail() {
+        final S[] states = initialState.getDeclaringClass().getEnumConstants();
+        final ImmutableList.Builder<S> trail = ImmutableList.builder();
+        for (short ordinal : this.trail) {
+            trail.add(states[ordinal]);
+        }
+        return trail.build();
+    }
+
+    @Override
+    public String toString() {
+        return "SequenceResult{" +
+                "trail=" + getTrail() +
+                ", unmatchedIndex=" + unmatchedIndex +
+                ", result=" + result +
+                '}';
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.octo47.yasm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logs transitions with slf4j: START, END, NOTFOUND and ERROR records at INFO level
+ * and guard feedback at DEBUG level. Transition ids and object ids are built
+ * only when appropriate level is enabled.
+ */
+public class Slf4jTransitionTracer<S extends Enum<S>, O> implements TransitionTracer<S, O> {
+
+    private final Logger logger;
+
+    public Slf4jTransitionTracer() {
+        this(LoggerFactory.getLogger(StateMachine.class));
+    }
+
+    public Slf4jTransitionTracer(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return logger.isInfoEnabled() || logger.isDebugEnabled();
+    }
+
+    @Override
+    public long onStart(StateMachine<S, O> machine, O input, S fromState, StateMachine.Action action) {
+        final long traceId = ThreadLocalRandom.current().nextLong();
+        if (logger.isInfoEnabled()) {
+            logger.info("{}:{}:START stateObject={} fromState={} action={}",
+                        machine.getMachineName(), Long.toHexString(traceId), machine.getObjectId(input), fromState, action);
+        }
+        return traceId;
+    }
+
+    @Override
+    public void onGuard(StateMachine<S, O> machine, long traceId, O input, S fromState, S toState,
+                        StateMachine.Action action, String message, boolean outcome) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("{}:{} stateObject={} fromState={} toState={} action={}: guard feedback: {} -> {}",
+                         machine.getMachineName(), Long.toHexString(traceId), machine.getObjectId(input),
+                         fromState, toState, action, message, outcome ? "ACCEPTED" : "REJECT");
+        }
+    }
+
+    @Override
+    public void onComplete(StateMachine<S, O> machine, long traceId, O input, S fromState, S toState,
+                           StateMachine.Action action, O result) {
+        if (logger.isInfoEnabled()) {
+            logger.info("{}:{}:END stateObject={} fromState={} toState={} action={}: transition complete: {}",
+                        machine.getMachineName(), Long.toHexString(traceId), machine.getObjectId(input),
+                        fromState, toState, action, result);
+        }
+    }
+
+    @Override
+    public void onNotFound(StateMachine<S, O> machine, long traceId, O input, S fromState, StateMachine.Action action) {
+        if (logger.isInfoEnabled()) {
+            logger.info("{}:{}:NOTFOUND stateObject={} fromState={} action={}: No state found {}",
+                        machine.getMachineName(), Long.toHexString(traceId), machine.getObjectId(input),
+                        fromState, action, input);
+        }
+    }
+
+    @Override
+    public void onError(StateMachine<S, O> machine, long traceId, O input, S fromState, StateMachine.Action action,
+                        RuntimeException error) {
+        if (logger.isInfoEnabled()) {
+            logger.info("{}:{}:ERROR stateObject={} fromState={} action={}: transition failed",
+                        machine.getMachineName(), Long.toHexString(traceId), machine.getObjectId(input),
+                        fromState, action, error);
+        }
+    }
+
+    @Override
+    public void onSequence(StateMachine<S, O> machine, O input, SequenceResult<S, O> result) {
+        if (logger.isInfoEnabled()) {
+            logger.info("{}:{}:SEQUENCE stateObject={} applied={} unmatchedIndex={} trail={}: {}",
+                        machine.getMachineName(), Long.toHexString(ThreadLocalRandom.current().nextLong()),
+                        machine.getObjectId(input), result.getApplied(), result.getUnmatchedIndex(),
+                        result.getTrail(), result.getResult());
+        }
+    }
+}
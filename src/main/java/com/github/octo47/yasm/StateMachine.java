@@ -2,23 +2,45 @@ package com.github.octo47.yasm;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.lang3.tuple.Pair;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Array;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
+import java.util.function.ToIntBiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
 
 public abstract class StateMachine<S extends Enum<S>, O> {
 
@@ -53,6 +75,44 @@ public abstract class StateMachine<S extends Enum<S>, O> {
 
     public static final Class<AnyAction> ANY = AnyAction.class;
 
+    /**
+     * Action delivered by {@link TimeoutScheduler} when object stays in the state
+     * longer than defined with {@link StateBuilder#permitAfter(Duration, Enum)}.
+     */
+    public static class TimeoutAction implements Action {
+
+        final Duration timeout;
+
+        TimeoutAction(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public String toString() {
+            return "TimeoutAction{" + timeout + "}";
+        }
+    }
+
+    // shared by loop() of machine and its wrappers
+    static final LoopAction LOOP = new LoopAction();
+
+    // used when nobody is listening for guard decisions
+    private static final GuardFeedback SILENT_FEEDBACK = (string, outcome) -> outcome;
+
+    /**
+     * Attempts of {@link #transitionAtomically(AtomicReference, Action)} to publish a result before giving up.
+     */
+    public static final int DEFAULT_ATOMIC_ATTEMPTS = 1000;
+
+    // atomic transition backoff: yield first, then park for randomized exponentially growing time
+    private static final int YIELD_RETRIES = 4;
+    private static final long MIN_BACKOFF_NANOS = 1_000;
+    private static final long MAX_BACKOFF_NANOS = 1_000_000;
+
     public static class SimpleAction implements Action {
         @Override
         public String toString() {
@@ -63,29 +123,75 @@ public abstract class StateMachine<S extends Enum<S>, O> {
     interface Guard<S> extends BiPredicate<S, GuardFeedback> {
     }
 
-    private final Logger logger = LoggerFactory.getLogger(StateMachine.class);
+    /**
+     * Guard depending on something besides the object (e.g. clock), see {@link #impure(Guard)}.
+     */
+    interface ImpureGuard<S> extends Guard<S> {
+    }
+
     private final Map<S, Set<Class<? extends Action>>> stateActions;
     private final Map<S, List<Function<O, O>>> stateEntry;
     private final Map<S, List<Function<O, O>>> stateExit;
     private final Map<Pair<S, Class<? extends Action>>, List<Transition<? extends Action>>> transitions;
+    private final Map<S, Duration> stateTimeouts;
+    private final Set<S> impureStates;
+    private final Set<S> exclusiveStates;
+    private final Map<S, S> parents;
+    private final List<Transition<? extends Action>> definedTransitions;
     private final Function<O, S> stateExtractor;
     private final BiFunction<O, S, O> stateApplier;
     private final Function<O, String> idProvider;
     private final String machineName;
+    private TransitionTracer<S, O> tracer = TransitionTracer.noop();
+    @Nullable
+    private TransitionRecorder<S, O> recorder;
+    @Nullable
+    private TransitionMetrics<S> metrics;
+    @Nullable
+    private Mutators<?> mutators;
+    // adaptive guard ordering is enabled when positive
+    private int reorderEvery;
+    @Nullable
+    private TransitionCache<O> cache;
+    // guards or transformers read context bound to the calling thread, see MachineRegistry
+    private boolean threadConfined;
+    // shared by all unconditional transitions and transitions without callback
+    private final Guard<O> alwaysPermitted = this::permitAlways;
+    private final BiFunction<Action, O, O> identity = this::identityTransformer;
+    private final AtomicTransitionStats atomicStats = new AtomicTransitionStats();
+    // compiled transition table, null until machine is frozen
+    private volatile Dispatch dispatch;
 
     class Transition<A extends Action> {
+        // definition order of transition in the machine
+        final int id;
         final Class<A> actionClass;
         final S from;
         final S to;
         final Guard<O> guard;
         final BiFunction<A, O, O> actionCallback;
+        // index of exit/entry pipeline in dispatch, same as id unless transition is inherited
+        final int pipeline;
 
-        Transition(Class<A> actionClass, S from, S to, Guard<O> guard, BiFunction<A, O, O> actionCallback) {
+        Transition(int id, Class<A> actionClass, S from, S to, Guard<O> guard, BiFunction<A, O, O> actionCallback) {
+            this.id = id;
             this.actionClass = actionClass;
             this.from = from;
             this.to = to;
             this.guard = guard;
             this.actionCallback = actionCallback;
+            this.pipeline = id;
+        }
+
+        // transition of parent state inherited by given sub state
+        Transition(Transition<A> inherited, S from, int pipeline) {
+            this.id = inherited.id;
+            this.actionClass = inherited.actionClass;
+            this.from = from;
+            this.to = inherited.to;
+            this.guard = inherited.guard;
+            this.actionCallback = inherited.actionCallback;
+            this.pipeline = pipeline;
         }
 
         @SuppressWarnings("unchecked")
@@ -96,7 +202,461 @@ public abstract class StateMachine<S extends Enum<S>, O> {
         }
     }
 
+    /**
+     * Candidates of a cell with mutually exclusive guards in adaptive ordering mode. As at most one
+     * guard accepts, evaluation order doesn't change outcome, so candidates are periodically reordered
+     * by expected cost of reaching accepting guard: sampled mean guard cost divided by its pass rate.
+     */
+    final class AdaptiveCell {
+        // timing every guard evaluation would cost more than guards themselves
+        private static final int COST_SAMPLING = 16;
+        // cheaper guards are not distinguishable with System.nanoTime()
+        private static final double MIN_COST_NANOS = 10;
+
+        private final Transition<?>[] transitions;
+        private final LongAdder[] evaluations;
+        private final LongAdder[] passes;
+        private final LongAdder[] sampledNanos;
+        private final LongAdder[] samples;
+        // minimal sample is used for ordering as it is not skewed by pauses and preemption
+        private final LongAccumulator[] minNanos;
+        private final int reorderEvery;
+        // indices of transitions in evaluation order
+        private volatile int[] order;
+
+        private AdaptiveCell(Transition<?>[] transitions, int reorderEvery) {
+            this.transitions = transitions;
+            this.reorderEvery = reorderEvery;
+            this.evaluations = adders(transitions.length);
+            this.passes = adders(transitions.length);
+            this.sampledNanos = adders(transitions.length);
+            this.samples = adders(transitions.length);
+            this.minNanos = new LongAccumulator[transitions.length];
+            for (int i = 0; i < minNanos.length; i++) {
+                minNanos[i] = new LongAccumulator(Math::min, Long.MAX_VALUE);
+            }
+            this.order = new int[transitions.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+        }
+
+        // verdict of candidates evaluated in adaptive order, see verdict(int, int)
+        private int match(O inputObject) {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final boolean timed = random.nextInt(COST_SAMPLING) == 0;
+            int verdict = verdict(-1, transitions.length);
+            int rejected = 0;
+            for (int index : order) {
+                final Transition<?> transition = transitions[index];
+                final long started = timed ? System.nanoTime() : 0;
+                final boolean accepted = transition.guard.test(inputObject, SILENT_FEEDBACK);
+                if (timed) {
+                    final long elapsed = System.nanoTime() - started;
+                    sampledNanos[index].add(elapsed);
+                    samples[index].increment();
+                    minNanos[index].accumulate(elapsed);
+                }
+                evaluations[index].increment();
+                if (accepted) {
+                    passes[index].increment();
+                    verdict = verdict(index, rejected);
+                    break;
+                }
+                rejected++;
+            }
+            if (random.nextInt(reorderEvery) == 0) {
+                reorder();
+            }
+            return verdict;
+        }
+
+        // called from transitions without locking, concurrent reorders compute order from the same
+        // counters and each publishes a complete array, so the last one wins
+        private void reorder() {
+            final double[] scores = new double[transitions.length];
+            final int[] order = new int[transitions.length];
+            for (int i = 0; i < transitions.length; i++) {
+                final long cost = minNanos[i].get();
+                // same pass rate as GuardStats without allocating it
+                final double passRate = (passes[i].sum() + 1.0) / (evaluations[i].sum() + 2.0);
+                scores[i] = Math.max(cost == Long.MAX_VALUE ? 0 : cost, MIN_COST_NANOS) / passRate;
+                // insertion sort by score, cells have a handful of candidates
+                int position = i;
+                while (position > 0 && scores[order[position - 1]] > scores[i]) {
+                    order[position] = order[position - 1];
+                    position--;
+                }
+                order[position] = i;
+            }
+            this.order = order;
+        }
+
+        private GuardStats<S> stats(int index) {
+            final Transition<?> transition = definedTransitions.get(transitions[index].id);
+            final long samples = this.samples[index].sum();
+            return new GuardStats<>(transition.from, transition.actionClass, transition.to,
+                                    evaluations[index].sum(), passes[index].sum(),
+                                    samples == 0 ? 0 : (double) sampledNanos[index].sum() / samples);
+        }
+
+        List<GuardStats<S>> ordering() {
+            final ImmutableList.Builder<GuardStats<S>> ordering = ImmutableList.builder();
+            for (int index : order) {
+                ordering.add(stats(index));
+            }
+            return ordering.build();
+        }
+    }
+
+    // guard verdicts packed as (rejected guards << 16 | matched candidate + 1), matched is -1 if none accepted
+    private static int verdict(int matched, int rejected) {
+        return Math.min(rejected, 0x7FFF) << 16 | (matched + 1);
+    }
+
+    private static int matched(int verdict) {
+        return (verdict & 0xFFFF) - 1;
+    }
+
+    private static int rejected(int verdict) {
+        return verdict >>> 16;
+    }
+
+    private static LongAdder[] adders(int size) {
+        final LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Candidate transitions of one action class for every state, indexed by {@code S.ordinal()}.
+     */
+    final class Column {
+        private final Transition<?>[][] candidates;
+        // cells without impure guards and states, null unless memoization is enabled
+        @Nullable
+        private final boolean[] memoized;
+        // cells with mutually exclusive guards (null for others), null unless adaptive ordering is enabled
+        @Nullable
+        private final AdaptiveCell[] adaptive;
+        private final Transition<?>[] none;
+
+        private Column(Transition<?>[][] candidates, @Nullable boolean[] memoized,
+                       @Nullable AdaptiveCell[] adaptive, Transition<?>[] none) {
+            this.candidates = candidates;
+            this.memoized = memoized;
+            this.adaptive = adaptive;
+            this.none = none;
+        }
+
+        @Nullable
+        AdaptiveCell adaptive(S state) {
+            final int ordinal = state.ordinal();
+            return ordinal < adaptive.length ? adaptive[ordinal] : null;
+        }
+
+        Transition<?>[] candidates(S state) {
+            final int ordinal = state.ordinal();
+            return ordinal < candidates.length ? candidates[ordinal] : none;
+        }
+
+        boolean memoized(S state) {
+            final int ordinal = state.ordinal();
+            return ordinal < memoized.length && memoized[ordinal];
+        }
+    }
+
+    /**
+     * Immutable transition table compiled from the definition maps.
+     * Table is split to columns by action class, resolved on first use and cached per dispatch,
+     * so action class hierarchy is walked once per class and lookup is a map get and a couple of array loads.
+     * Columns refer to the machine, so they are not cached in action classes themselves (e.g. with
+     * {@link ClassValue}), that would keep every machine which ever dispatched an action reachable.
+     * Cell of a state lists its ANY transitions followed by transitions of the most specific
+     * superclass or interface of the action class registered in the state (nearest first,
+     * superclasses before interfaces of the same distance).
+     * Exit and entry transformers with state applier are precomposed into a single pipeline
+     * per (from, to) pair, indexed by transition pipeline index.
+     * <p>
+     * Sub states inherit transitions of their parents: cell of a sub state lists its own transitions
+     * followed by the parent ones, up to the root, and inherited transitions get pipelines exiting
+     * and entering states up to the least common ancestor, so nested machine dispatches as a flat one.
+     */
+    final class Dispatch {
+        private final S[] states;
+        private final Function<O, O>[] pipelines;
+        // pipeline index -> pipeline passes impure states
+        private final boolean[] impurePipelines;
+        @Nullable
+        private final TransitionCache<O> cache;
+        private final long[] timeoutMillis;
+        // state ordinal -> the state or its nearest ancestor declaring the timeout, null if none
+        private final S[] timeoutStates;
+        // state ordinal -> action classes having transitions in the state
+        private final Set<Class<? extends Action>>[] registered;
+        // state ordinal -> transition id -> transition of an ancestor inherited by the state
+        private final Map<Integer, Transition<?>>[] inherited;
+        // columns of action classes resolving to the same registered classes are shared
+        private final Map<List<Class<?>>, Column> resolvedColumns = new ConcurrentHashMap<>();
+        private final Map<Class<?>, Column> columns = new ConcurrentHashMap<>();
+        private final Transition<?>[] none;
+        private final TransitionTracer<S, O> tracer;
+        @Nullable
+        private final TransitionRecorder<S, O> recorder;
+        @Nullable
+        private final TransitionMetrics<S> metrics;
+
+        private Dispatch() {
+            this.states = knownStates();
+            this.none = newArray(Transition.class, 0);
+            this.tracer = StateMachine.this.tracer;
+            this.recorder = StateMachine.this.recorder;
+            this.metrics = StateMachine.this.metrics;
+            if (metrics != null) {
+                final TransitionMetrics.Stats<S>[] stats = newArray(TransitionMetrics.Stats.class, definedTransitions.size());
+                for (Transition<? extends Action> transition : definedTransitions) {
+                    stats[transition.id] = new TransitionMetrics.Stats<>(transition.from, transition.actionClass, transition.to);
+                }
+                metrics.init(stats, states);
+            }
+            this.registered = newArray(Set.class, states.length);
+            this.inherited = newArray(Map.class, states.length);
+            this.timeoutMillis = new long[states.length];
+            this.timeoutStates = newArray(Enum.class, states.length);
+            // pipelines of defined transitions go first, by id, inherited ones are appended
+            final List<Transition<?>> resolved = Lists.newArrayList(definedTransitions);
+            for (S state : states) {
+                final List<S> ancestry = ancestry(state);
+                final Set<Class<? extends Action>> actions = Sets.newHashSet(stateActions.getOrDefault(state, ImmutableSet.of()));
+                actions.remove(ANY);
+                registered[state.ordinal()] = actions;
+                inherited[state.ordinal()] = Maps.newHashMap();
+                for (Transition<? extends Action> transition : definedTransitions) {
+                    if (transition.from != state && ancestry.contains(transition.from)) {
+                        final Transition<?> copy = inherit(transition, state, resolved.size());
+                        resolved.add(copy);
+                        inherited[state.ordinal()].put(transition.id, copy);
+                    }
+                }
+                timeoutMillis[state.ordinal()] = -1;
+                for (S level : ancestry) {
+                    if (stateTimeouts.containsKey(level)) {
+                        timeoutMillis[state.ordinal()] = stateTimeouts.get(level).toMillis();
+                        timeoutStates[state.ordinal()] = level;
+                        break;
+                    }
+                }
+            }
+            this.pipelines = newArray(Function.class, resolved.size());
+            this.impurePipelines = new boolean[resolved.size()];
+            final Map<Pair<S, S>, Function<O, O>> composed = Maps.newHashMap();
+            for (Transition<?> transition : resolved) {
+                pipelines[transition.pipeline] = composed.computeIfAbsent(Pair.of(transition.from, transition.to),
+                                                                          pair -> pipeline(pair.getLeft(), pair.getRight()));
+                final List<S> path = Lists.newArrayList(exitPath(transition.from, transition.to));
+                path.addAll(entryPath(transition.from, transition.to));
+                impurePipelines[transition.pipeline] = !Collections.disjoint(path, impureStates);
+            }
+            this.cache = StateMachine.this.cache;
+        }
+
+        // resolves registered action class of every state and its ancestors
+        private Column resolveColumn(Class<?> actionClass) {
+            final List<Class<?>> supertypes = supertypes(actionClass);
+            final List<Class<?>> signature = Lists.newArrayList();
+            for (S state : states) {
+                for (S level : ancestry(state)) {
+                    Class<?> match = null;
+                    for (Class<?> supertype : supertypes) {
+                        if (registered[level.ordinal()].contains(supertype)) {
+                            match = supertype;
+                            break;
+                        }
+                    }
+                    signature.add(match);
+                }
+            }
+            return resolvedColumns.computeIfAbsent(signature, this::buildColumn);
+        }
+
+        private Column buildColumn(List<Class<?>> signature) {
+            final Transition<?>[][] candidates = newArray(Transition[].class, states.length);
+            final boolean[] memoized = cache != null ? new boolean[states.length] : null;
+            final AdaptiveCell[] adaptive = reorderEvery > 0 ? newArray(AdaptiveCell.class, states.length) : null;
+            int resolved = 0;
+            for (S state : states) {
+                final List<Transition<?>> cell = Lists.newArrayList();
+                for (S level : ancestry(state)) {
+                    final Class<?> match = signature.get(resolved++);
+                    for (Transition<?> transition : Iterables.concat(
+                            transitions.getOrDefault(Pair.of(level, ANY), ImmutableList.of()),
+                            match == null ? ImmutableList.of() : transitions.get(Pair.of(level, match)))) {
+                        cell.add(level == state ? transition : inherited[state.ordinal()].get(transition.id));
+                    }
+                }
+                candidates[state.ordinal()] = cell.toArray(newArray(Transition.class, 0));
+                if (memoized != null) {
+                    boolean pure = true;
+                    for (Transition<?> transition : cell) {
+                        pure &= !(transition.guard instanceof ImpureGuard) && !impurePipelines[transition.pipeline];
+                    }
+                    memoized[state.ordinal()] = pure;
+                }
+                if (adaptive != null && cell.size() > 1) {
+                    boolean exclusive = true;
+                    for (Transition<?> transition : cell) {
+                        exclusive &= exclusiveStates.contains(definedTransitions.get(transition.id).from);
+                    }
+                    if (exclusive) {
+                        adaptive[state.ordinal()] = new AdaptiveCell(candidates[state.ordinal()], reorderEvery);
+                    }
+                }
+            }
+            return new Column(candidates, memoized, adaptive, none);
+        }
+
+        Column column(Class<? extends Action> actionClass) {
+            final Column column = columns.get(actionClass);
+            return column != null ? column : columns.computeIfAbsent(actionClass, this::resolveColumn);
+        }
+
+        Transition<?>[] candidates(S state, Class<? extends Action> actionClass) {
+            return column(actionClass).candidates(state);
+        }
+
+        Function<O, O> pipeline(Transition<?> transition) {
+            return pipelines[transition.pipeline];
+        }
+
+        // exit transformers of exited states, working copy mutators (which also apply the state), entry transformers
+        private Function<O, O> pipeline(S from, S to) {
+            final List<S> exited = exitPath(from, to);
+            final List<S> entered = entryPath(from, to);
+            final List<Function<O, O>> exitTransformers = Lists.newArrayList();
+            for (S state : exited) {
+                exitTransformers.addAll(stateExit.getOrDefault(state, ImmutableList.of()));
+            }
+            final List<Function<O, O>> entryTransformers = Lists.newArrayList();
+            for (S state : entered) {
+                entryTransformers.addAll(stateEntry.getOrDefault(state, ImmutableList.of()));
+            }
+            final Function<O, O>[] exit = exitTransformers.toArray(newArray(Function.class, 0));
+            final Function<O, O>[] entry = entryTransformers.toArray(newArray(Function.class, 0));
+            final Function<O, O> mutation = mutators != null ? mutators.pipeline(exited, entered, to) : null;
+            if (mutation == null) {
+                final Function<O, O>[] chain = Arrays.copyOf(exit, exit.length + entry.length);
+                System.arraycopy(entry, 0, chain, exit.length, entry.length);
+                if (chain.length == 0) {
+                    return object -> stateApplier.apply(object, to);
+                }
+                return object -> {
+                    for (Function<O, O> transformer : chain) {
+                        object = transformer.apply(object);
+                    }
+                    return stateApplier.apply(object, to);
+                };
+            }
+            if (exit.length == 0 && entry.length == 0) {
+                return mutation;
+            }
+            return object -> {
+                for (Function<O, O> transformer : exit) {
+                    object = transformer.apply(object);
+                }
+                object = mutation.apply(object);
+                for (Function<O, O> transformer : entry) {
+                    object = transformer.apply(object);
+                }
+                return object;
+            };
+        }
+
+        long timeoutMillis(S state) {
+            final int ordinal = state.ordinal();
+            return ordinal < timeoutMillis.length ? timeoutMillis[ordinal] : -1;
+        }
+
+        @Nullable
+        S timeoutState(S state) {
+            final int ordinal = state.ordinal();
+            return ordinal < timeoutStates.length ? timeoutStates[ordinal] : null;
+        }
+    }
+
+    /**
+     * Exit and entry mutators working on a mutable copy of state object. For every transition
+     * copy is opened once, all mutators of the transition are applied and immutable object
+     * is materialized once together with the new state, instead of a copy per transformer.
+     * Function transformers of {@link StateBuilder#onExit(Function)} and {@link StateBuilder#onEntry(Function)}
+     * still run before and after the working copy.
+     *
+     * @param <B> mutable working copy, e.g. builder of state object
+     */
+    public final class Mutators<B> {
+        private final Function<O, B> open;
+        private final BiFunction<B, S, O> close;
+        private final Map<S, List<Consumer<B>>> entry = Maps.newHashMap();
+        private final Map<S, List<Consumer<B>>> exit = Maps.newHashMap();
+
+        private Mutators(Function<O, B> open, BiFunction<B, S, O> close) {
+            this.open = open;
+            this.close = close;
+        }
+
+        public Mutators<B> onEntry(S state, Consumer<B> mutator) {
+            checkNotFrozen();
+            entry.computeIfAbsent(state, s -> Lists.newArrayList()).add(mutator);
+            return this;
+        }
+
+        public Mutators<B> onExit(S state, Consumer<B> mutator) {
+            checkNotFrozen();
+            exit.computeIfAbsent(state, s -> Lists.newArrayList()).add(mutator);
+            return this;
+        }
+
+        // null if there are no mutators for exited and entered states
+        @Nullable
+        private Function<O, O> pipeline(List<S> exited, List<S> entered, S to) {
+            final List<Consumer<B>> mutators = Lists.newArrayList();
+            for (S state : exited) {
+                mutators.addAll(exit.getOrDefault(state, ImmutableList.of()));
+            }
+            for (S state : entered) {
+                mutators.addAll(entry.getOrDefault(state, ImmutableList.of()));
+            }
+            final Consumer<B>[] chain = mutators.toArray(newArray(Consumer.class, 0));
+            if (chain.length == 0) {
+                return null;
+            }
+            return object -> {
+                final B copy = open.apply(object);
+                for (Consumer<B> mutator : chain) {
+                    mutator.accept(copy);
+                }
+                return close.apply(copy, to);
+            };
+        }
+    }
+
+    /**
+     * Enables mutable mode, see {@link Mutators}. Can be enabled once, before machine is frozen.
+     *
+     * @param open  creates mutable copy of state object
+     * @param close materializes immutable object with given state from the copy
+     */
+    protected <B> Mutators<B> mutableMode(Function<O, B> open, BiFunction<B, S, O> close) {
+        checkNotFrozen();
+        Preconditions.checkState(mutators == null, "Mutable mode of %s already enabled", machineName);
+        final Mutators<B> mutators = new Mutators<>(open, close);
+        this.mutators = mutators;
+        return mutators;
+    }
+
     StateBuilder fromState(S from) {
+        checkNotFrozen();
         return new StateBuilder(from);
     }
 
@@ -108,40 +668,102 @@ public abstract class StateMachine<S extends Enum<S>, O> {
         }
 
         public StateBuilder onEntry(Function<O, O> entryTransformer) {
+            checkNotFrozen();
             stateEntry.computeIfAbsent(from, s -> Lists.newArrayList()).add(entryTransformer);
             return this;
         }
 
         public StateBuilder onExit(Function<O, O> exitTransformer) {
+            checkNotFrozen();
             stateExit.computeIfAbsent(from, s -> Lists.newArrayList()).add(exitTransformer);
             return this;
         }
 
+        /**
+         * Declares the state as sub state of given parent: it inherits parent transitions
+         * (own transitions are tried first) and timeout, transitions exit and enter states
+         * up to the least common ancestor of source and target states.
+         */
+        public StateBuilder subStateOf(S parent) {
+            checkNotFrozen();
+            Preconditions.checkState(!parents.containsKey(from) || parents.get(from) == parent,
+                                     "State %s already has parent %s", from, parents.get(from));
+            Preconditions.checkArgument(!ancestry(parent).contains(from), "Cyclic hierarchy: %s is ancestor of %s", from, parent);
+            parents.put(from, parent);
+            return this;
+        }
+
+        /**
+         * Marks entry or exit transformers of the state as impure (e.g. depending on clock),
+         * so transitions from and to the state are never memoized.
+         */
+        public StateBuilder impure() {
+            checkNotFrozen();
+            impureStates.add(from);
+            return this;
+        }
+
+        /**
+         * Declares that guards of transitions from the state never accept the same object and action
+         * together, so they can be evaluated in any order, see {@link #enableAdaptiveOrdering(int)}.
+         */
+        public StateBuilder exclusiveGuards() {
+            checkNotFrozen();
+            exclusiveStates.add(from);
+            return this;
+        }
+
         public <A extends Action> StateBuilder permitIf(Class<A> action, S to, Guard<O> guard, BiFunction<A, O, O> objectTransformer) {
             StateMachine.this.addTransition(action, from, to, guard, objectTransformer);
             return this;
         }
 
         public <A extends Action> StateBuilder permit(Class<A> action, S to, BiFunction<A, O, O> objectTransformer) {
-            StateMachine.this.addTransition(action, from, to, StateMachine.this::permitAlways, objectTransformer);
+            StateMachine.this.addTransition(action, from, to, alwaysPermitted, objectTransformer);
             return this;
         }
 
         public <A extends Action> StateBuilder permitIf(Class<A> action, S to, Guard<O> guard) {
-            StateMachine.this.addTransition(action, from, to, guard, StateMachine.this::identityTransformer);
+            StateMachine.this.addTransition(action, from, to, guard, identity());
             return this;
         }
 
         public <A extends Action> StateBuilder permit(Class<A> action, S to) {
-            StateMachine.this.addTransition(action, from, to, StateMachine.this::permitAlways, StateMachine.this::identityTransformer);
+            StateMachine.this.addTransition(action, from, to, alwaysPermitted, identity());
+            return this;
+        }
+
+        /**
+         * Defines transition fired by {@link TimeoutScheduler} once object spent given time in the state.
+         * Only one timeout transition can be defined per state.
+         */
+        public StateBuilder permitAfter(Duration timeout, S to, BiFunction<TimeoutAction, O, O> objectTransformer) {
+            Preconditions.checkArgument(!timeout.isNegative(), "Timeout should not be negative: %s", timeout);
+            Preconditions.checkState(!stateTimeouts.containsKey(from), "Timeout for state %s already defined", from);
+            StateMachine.this.addTransition(TimeoutAction.class, from, to, alwaysPermitted, objectTransformer);
+            stateTimeouts.put(from, timeout);
             return this;
         }
+
+        public StateBuilder permitAfter(Duration timeout, S to) {
+            return permitAfter(timeout, to, identity());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Transition<?> inherit(Transition<? extends Action> transition, S state, int pipeline) {
+        return new Transition<>((Transition<Action>) transition, state, pipeline);
     }
 
     private <A extends Action> O identityTransformer(A action, O object) {
         return object;
     }
 
+    @SuppressWarnings("unchecked")
+    private <A extends Action> BiFunction<A, O, O> identity() {
+        return (BiFunction<A, O, O>) (BiFunction<?, O, O>) identity;
+    }
+
     StateMachine(String machineName, Function<O, S> stateExtractor, BiFunction<O, S, O> stateApplier, Function<O, String> idProvider) {
         this.machineName = machineName;
         this.stateExtractor = stateExtractor;
@@ -151,12 +773,20 @@ public abstract class StateMachine<S extends Enum<S>, O> {
         this.stateActions = Maps.newHashMap();
         this.stateEntry = Maps.newHashMap();
         this.stateExit = Maps.newHashMap();
+        this.stateTimeouts = Maps.newHashMap();
+        this.impureStates = Sets.newHashSet();
+        this.exclusiveStates = Sets.newHashSet();
+        this.parents = Maps.newHashMap();
+        this.definedTransitions = Lists.newArrayList();
     }
 
     private <A extends Action> void addTransition(Class<A> eventClass, S from, S to, Guard<O> guard, BiFunction<A, O, O> actionCallback) {
+        checkNotFrozen();
         final List<Transition<? extends Action>> transitions =
                 this.transitions.computeIfAbsent(Pair.of(from, eventClass), k -> Lists.newArrayList());
-        transitions.add(new Transition<>(eventClass, from, to, guard, actionCallback));
+        final Transition<A> transition = new Transition<>(definedTransitions.size(), eventClass, from, to, guard, actionCallback);
+        transitions.add(transition);
+        definedTransitions.add(transition);
         this.stateActions.computeIfAbsent(from, f -> Sets.newHashSet()).add(eventClass);
     }
 
@@ -164,6 +794,14 @@ public abstract class StateMachine<S extends Enum<S>, O> {
         return true;
     }
 
+    /**
+     * Marks guard as impure, so transitions it guards are never memoized.
+     */
+    protected Guard<O> impure(Guard<O> guard) {
+        final ImpureGuard<O> impure = guard::test;
+        return impure;
+    }
+
     protected Guard<O> withMessage(String message, Predicate<O> simpleGuard) {
         return (s, feedback) -> feedback.addResolution(message, simpleGuard.test(s));
     }
@@ -176,62 +814,814 @@ public abstract class StateMachine<S extends Enum<S>, O> {
         return machineName;
     }
 
+    /**
+     * Compiles machine definition into immutable dispatch table. Any further attempt
+     * to define states or transitions will be rejected with {@link IllegalStateException}.
+     * Machine is frozen implicitly on first transition, call is idempotent.
+     */
+    public void freeze() {
+        dispatch();
+    }
+
+    /**
+     * Sets tracer for transitions of this machine, should be called before machine is frozen.
+     * By default machine doesn't trace anything.
+     */
+    public void setTracer(TransitionTracer<S, O> tracer) {
+        checkNotFrozen();
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sets recorder of transition outcomes, should be called before machine is frozen.
+     */
+    public void setRecorder(TransitionRecorder<S, O> recorder) {
+        checkNotFrozen();
+        this.recorder = recorder;
+    }
+
+    /**
+     * @return timeout defined for given state with {@link StateBuilder#permitAfter(Duration, Enum)}
+     */
+    public Optional<Duration> getTimeout(S state) {
+        final long timeoutMillis = dispatch().timeoutMillis(state);
+        return timeoutMillis < 0 ? Optional.empty() : Optional.of(Duration.ofMillis(timeoutMillis));
+    }
+
+    public boolean hasTimeouts() {
+        dispatch();
+        return !stateTimeouts.isEmpty();
+    }
+
+    long getTimeoutMillis(S state) {
+        return dispatch().timeoutMillis(state);
+    }
+
+    /**
+     * @return true if moving between given states keeps timeout deadline running: both have
+     * timeout of the same ancestor, which is neither exited nor entered by the move
+     */
+    boolean keepsTimeout(S from, S to) {
+        final S timeoutState = dispatch().timeoutState(from);
+        return timeoutState != null && from != to && timeoutState == dispatch().timeoutState(to)
+                && !exitPath(from, to).contains(timeoutState) && !entryPath(from, to).contains(timeoutState);
+    }
+
+    S getState(O object) {
+        return stateExtractor.apply(object);
+    }
+
+    /**
+     * Enables per transition metrics, should be called before machine is frozen.
+     *
+     * @param latencySampling record latencies of every n-th transition on average, counters are always exact
+     */
+    public TransitionMetrics<S> enableMetrics(int latencySampling) {
+        checkNotFrozen();
+        this.metrics = new TransitionMetrics<>(latencySampling);
+        return metrics;
+    }
+
+    public TransitionMetrics<S> enableMetrics() {
+        return enableMetrics(1);
+    }
+
+    /**
+     * Enables memoization of transition results, should be called before machine is frozen.
+     * Transitions should be pure functions of (object, action), transitions with guards marked
+     * by {@link #impure(Guard)} or from and to states marked by {@link StateBuilder#impure()}
+     * bypass the cache, as well as traced and metered transitions.
+     *
+     * @param maximumSize maximum number of cached results
+     */
+    public TransitionCache<O> enableMemoization(long maximumSize) {
+        checkNotFrozen();
+        this.cache = new TransitionCache<>(maximumSize);
+        return cache;
+    }
+
+    /**
+     * Same as {@link #enableMemoization(long)}, but cache is bounded by weight of (input, result) entries.
+     */
+    public TransitionCache<O> enableMemoization(long maximumWeight, ToIntBiFunction<O, O> weigher) {
+        checkNotFrozen();
+        this.cache = new TransitionCache<>(maximumWeight, weigher);
+        return cache;
+    }
+
+    /**
+     * Enables adaptive ordering of candidates with mutually exclusive guards (declared with
+     * {@link StateBuilder#exclusiveGuards()}), should be called before machine is frozen.
+     * Machine tracks guard pass rates and sampled costs and periodically reorders candidates,
+     * cheapest and most likely first. Used for transitions without tracer and metrics.
+     *
+     * @param reorderEvery reorder candidates every n-th transition of the cell on average
+     */
+    public void enableAdaptiveOrdering(int reorderEvery) {
+        checkNotFrozen();
+        Preconditions.checkArgument(reorderEvery > 0, "Reorder interval should be positive: %s", reorderEvery);
+        this.reorderEvery = reorderEvery;
+    }
+
+    /**
+     * @return current evaluation order of candidates for given state and action class with observed
+     * guard statistics, empty if candidates are not adaptively ordered
+     */
+    public List<GuardStats<S>> getGuardOrdering(S state, Class<? extends Action> actionClass) {
+        final Column column = dispatch().column(actionClass);
+        final AdaptiveCell cell = column.adaptive != null ? column.adaptive(state) : null;
+        return cell == null ? ImmutableList.of() : cell.ordering();
+    }
+
+    /**
+     * @return action classes of transitions defined from every state, including {@link #ANY}
+     * and {@link TimeoutAction} ones, inherited transitions of nested states are not listed
+     */
+    public Map<S, Set<Class<? extends Action>>> getStateActions() {
+        final ImmutableMap.Builder<S, Set<Class<? extends Action>>> actions = ImmutableMap.builder();
+        stateActions.forEach((state, classes) -> actions.put(state, ImmutableSet.copyOf(classes)));
+        return actions.build();
+    }
+
+    /**
+     * @return contention statistics of {@link #transitionAtomically(AtomicReference, Action)}
+     */
+    public AtomicTransitionStats getAtomicTransitionStats() {
+        return atomicStats;
+    }
+
+    public String getObjectId(O object) {
+        return idProvider.apply(object);
+    }
+
+    public boolean isFrozen() {
+        return dispatch != null;
+    }
+
+    boolean isMemoized() {
+        return cache != null;
+    }
+
+    /**
+     * Marks machine as reading context bound to the calling thread, so it can't be used by
+     * components applying transitions in other threads.
+     */
+    void confineToCallingThread() {
+        this.threadConfined = true;
+    }
+
+    void checkNotThreadConfined(String use) {
+        Preconditions.checkState(!threadConfined, "State machine %s reads context of the calling thread, %s is not supported",
+                                 machineName, use);
+    }
+
+    private void checkNotFrozen() {
+        Preconditions.checkState(dispatch == null, "State machine %s is frozen", machineName);
+    }
+
+    private Dispatch dispatch() {
+        final Dispatch dispatch = this.dispatch;
+        if (dispatch != null) {
+            return dispatch;
+        }
+        synchronized (this) {
+            if (this.dispatch == null) {
+                this.dispatch = new Dispatch();
+            }
+            return this.dispatch;
+        }
+    }
+
+    private static void backoff(int retry) {
+        if (retry < YIELD_RETRIES) {
+            Thread.yield();
+        } else {
+            final long bound = Math.min(MIN_BACKOFF_NANOS << Math.min(retry - YIELD_RETRIES, 20), MAX_BACKOFF_NANOS);
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(bound) + 1);
+        }
+    }
+
+    // generic array creation, arrays of generic types can't be created directly
+    @SuppressWarnings("unchecked")
+    private static <T> T[] newArray(Class<? super T> componentType, int length) {
+        return (T[]) Array.newInstance(componentType, length);
+    }
+
+    // class itself followed by its supertypes, nearest first, superclasses before interfaces of the same distance
+    private static List<Class<?>> supertypes(Class<?> type) {
+        final List<Class<?>> supertypes = Lists.newArrayList();
+        final Deque<Class<?>> queue = new ArrayDeque<>();
+        queue.add(type);
+        while (!queue.isEmpty()) {
+            final Class<?> next = queue.poll();
+            if (!supertypes.contains(next)) {
+                supertypes.add(next);
+                if (next.getSuperclass() != null) {
+                    queue.add(next.getSuperclass());
+                }
+                queue.addAll(Arrays.asList(next.getInterfaces()));
+            }
+        }
+        return supertypes;
+    }
+
+    // state followed by its ancestors up to the root
+    private List<S> ancestry(S state) {
+        final List<S> ancestry = Lists.newArrayList();
+        for (S level = state; level != null; level = parents.get(level)) {
+            ancestry.add(level);
+        }
+        return ancestry;
+    }
+
+    // closest ancestor shared by both states, external transitions leave and re-enter the
+    // ancestor if it is one of the states, so from and to are always exited and entered
+    @Nullable
+    private S leastCommonAncestor(S from, S to) {
+        final List<S> toAncestry = ancestry(to);
+        for (S level : ancestry(from)) {
+            if (toAncestry.contains(level)) {
+                return level == from || level == to ? parents.get(level) : level;
+            }
+        }
+        return null;
+    }
+
+    // states to exit, innermost first
+    private List<S> exitPath(S from, S to) {
+        final List<S> ancestry = ancestry(from);
+        final S ancestor = leastCommonAncestor(from, to);
+        return ancestor == null ? ancestry : ancestry.subList(0, ancestry.indexOf(ancestor));
+    }
+
+    // states to enter, outermost first
+    private List<S> entryPath(S from, S to) {
+        final List<S> ancestry = ancestry(to);
+        final S ancestor = leastCommonAncestor(from, to);
+        return Lists.reverse(ancestor == null ? ancestry : ancestry.subList(0, ancestry.indexOf(ancestor)));
+    }
+
+    private S[] knownStates() {
+        final Set<S> states = Sets.newHashSet(stateActions.keySet());
+        states.addAll(stateEntry.keySet());
+        states.addAll(stateExit.keySet());
+        states.addAll(parents.keySet());
+        if (states.isEmpty()) {
+            return newArray(Enum.class, 0);
+        }
+        return states.iterator().next().getDeclaringClass().getEnumConstants();
+    }
+
     public Optional<O> loop(O inputObject) {
-        return transition(inputObject, new LoopAction());
+        return transition(inputObject, LOOP);
     }
 
     public Optional<O> transition(O inputObject, Action action) {
-        final UUID transitionId = UUID.randomUUID();
-        final S fromState = stateExtractor.apply(inputObject);
-        logger.info("{}:{}:START stateObject={} fromState={} action={}", machineName, transitionId, idProvider.apply(inputObject), fromState, action.toString());
-        List<Transition<? extends Action>> anyActionTransitions = this.transitions
-                                                                          .getOrDefault(Pair.of(fromState, AnyAction.class), ImmutableList.of());
-        final List<Transition<? extends Action>> transitions;
-        if (action.getClass() != ANY) {
-            transitions = this.transitions
-                                  .getOrDefault(Pair.of(fromState, action.getClass()), ImmutableList.of());
-        } else {
-            transitions = ImmutableList.of();
+        return Optional.ofNullable(transitionOrNull(inputObject, action));
+    }
+
+    /**
+     * Same as {@link #transition(Object, Action)}, but returns null if no transition found.
+     * Doesn't allocate anything on its own when tracer and metrics are disabled, so only allocations are
+     * the ones made by transformers (and {@link AnyAction} wrapper for ANY transitions).
+     */
+    @Nullable
+    public O transitionOrNull(O inputObject, Action action) {
+        final Dispatch dispatch = dispatch();
+        return dispatchedTransition(dispatch, inputObject, stateExtractor.apply(inputObject), action,
+                                    dispatch.tracer.isEnabled());
+    }
+
+    @Nullable
+    private O dispatchedTransition(Dispatch dispatch, O inputObject, S fromState, Action action, boolean tracing) {
+        if (dispatch.metrics != null || tracing) {
+            return instrumentedTransition(dispatch, inputObject, fromState, action, tracing);
         }
-        for (Transition<? extends Action> transition : Iterables.concat(anyActionTransitions, transitions)) {
-            final GuardFeedback guardFeedback = (string, outcome) -> {
-                logger.debug("{}:{} stateObject={} fromState={} toState={} action={}: guard feedback: {} -> {}",
-                             machineName, transitionId, idProvider.apply(inputObject),fromState, transition.to, action.toString(), string, outcome ? "ACCEPTED" : "REJECT");
-                return outcome;
-            };
-            if (transition.guard.test(inputObject, guardFeedback)) {
-                final O outputObject;
-                if (!inputObject.equals(transition.to)) {
-                    outputObject = handleStateTransition(inputObject, transition.from, transition.to);
-                } else {
-                    outputObject = inputObject;
+        if (dispatch.recorder != null) {
+            return recordedTransition(dispatch, inputObject, fromState, action);
+        }
+        return untracedTransition(dispatch, inputObject, fromState, action);
+    }
+
+    // same dispatch as untraced transition, keeping guard verdicts for the recorder
+    @Nullable
+    private O recordedTransition(Dispatch dispatch, O inputObject, S fromState, Action action) {
+        final TransitionRecorder<S, O> recorder = dispatch.recorder;
+        final long started = System.nanoTime();
+        final Column column = dispatch.column(action.getClass());
+        final boolean memoized = dispatch.cache != null && column.memoized(fromState);
+        final O result;
+        final int matched;
+        final int rejected;
+        try {
+            final Object cached = memoized ? dispatch.cache.lookup(inputObject, action) : null;
+            if (cached != null) {
+                result = dispatch.cache.result(cached);
+                matched = TransitionRecorder.MEMOIZED;
+                rejected = 0;
+            } else {
+                final Transition<?>[] candidates = column.candidates(fromState);
+                final AdaptiveCell cell = column.adaptive != null ? column.adaptive(fromState) : null;
+                final int verdict = cell != null ? cell.match(inputObject) : match(candidates, inputObject);
+                matched = matched(verdict);
+                rejected = rejected(verdict);
+                result = matched < 0 ? null : applyTransition(dispatch, candidates[matched], inputObject, action);
+                if (memoized) {
+                    dispatch.cache.put(inputObject, action, result);
+                }
+            }
+        } catch (RuntimeException e) {
+            recorder.onError(inputObject, fromState, action, started, e);
+            throw e;
+        }
+        recorder.onTransition(inputObject, fromState, result == null ? null : stateExtractor.apply(result), action,
+                              matched, rejected, started);
+        return result;
+    }
+
+    private int match(Transition<?>[] candidates, O inputObject) {
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i].guard.test(inputObject, SILENT_FEEDBACK)) {
+                return verdict(i, i);
+            }
+        }
+        return verdict(-1, candidates.length);
+    }
+
+    /**
+     * Applies action to the object of shared holder without locking: result is computed from
+     * the current object and published with compare-and-set. If another thread published first,
+     * transition is recomputed from the new object after bounded backoff, so guards and transformers
+     * may run several times for a single call and should be free of side effects.
+     * Gives up after {@link #DEFAULT_ATOMIC_ATTEMPTS} attempts. Attempts lost to other threads
+     * are not traced, metered or recorded, events are emitted once for the published result,
+     * without guard feedback and latencies.
+     *
+     * @return published object or empty if no transition found for the current object
+     */
+    public Optional<O> transitionAtomically(AtomicReference<O> holder, Action action) {
+        return transitionAtomically(holder, action, DEFAULT_ATOMIC_ATTEMPTS);
+    }
+
+    /**
+     * Same as {@link #transitionAtomically(AtomicReference, Action)} with given number of attempts.
+     *
+     * @throws IllegalStateException if result is not published after given number of attempts
+     */
+    public Optional<O> transitionAtomically(AtomicReference<O> holder, Action action, int maxAttempts) {
+        Preconditions.checkArgument(maxAttempts > 0, "Attempts should be positive: %s", maxAttempts);
+        final Dispatch dispatch = dispatch();
+        final boolean observed = isObserved(dispatch);
+        for (int retry = 0; ; retry++) {
+            final O current = holder.get();
+            final S fromState = stateExtractor.apply(current);
+            final long started = observed ? System.nanoTime() : 0;
+            final Transition<?>[] candidates = observed ? dispatch.candidates(fromState, action.getClass()) : null;
+            final int matched = observed ? matchObserved(dispatch, candidates, current, fromState, action, started) : -1;
+            final O result = observed
+                    ? applyObserved(dispatch, candidates, matched, current, fromState, action, started)
+                    : untracedTransition(dispatch, current, fromState, action);
+            if (result == null || result == current || holder.compareAndSet(current, result)) {
+                atomicStats.record(retry, result != null);
+                if (observed) {
+                    published(dispatch, candidates, matched, current, fromState, action, result, started);
+                }
+                return Optional.ofNullable(result);
+            }
+            checkAttempts(current, action, retry, maxAttempts);
+            backoff(retry);
+        }
+    }
+
+    /**
+     * Same as {@link #transitionAtomically(AtomicReference, Action)} for object kept in volatile field
+     * of the holder, saving {@link AtomicReference} per object.
+     */
+    public <H> Optional<O> transitionAtomically(H holder, AtomicReferenceFieldUpdater<H, O> field, Action action) {
+        return transitionAtomically(holder, field, action, DEFAULT_ATOMIC_ATTEMPTS);
+    }
+
+    /**
+     * Same as {@link #transitionAtomically(Object, AtomicReferenceFieldUpdater, Action)} with given number of attempts.
+     *
+     * @throws IllegalStateException if result is not published after given number of attempts
+     */
+    public <H> Optional<O> transitionAtomically(H holder, AtomicReferenceFieldUpdater<H, O> field, Action action,
+                                                int maxAttempts) {
+        Preconditions.checkArgument(maxAttempts > 0, "Attempts should be positive: %s", maxAttempts);
+        final Dispatch dispatch = dispatch();
+        final boolean observed = isObserved(dispatch);
+        for (int retry = 0; ; retry++) {
+            final O current = field.get(holder);
+            final S fromState = stateExtractor.apply(current);
+            final long started = observed ? System.nanoTime() : 0;
+            final Transition<?>[] candidates = observed ? dispatch.candidates(fromState, action.getClass()) : null;
+            final int matched = observed ? matchObserved(dispatch, candidates, current, fromState, action, started) : -1;
+            final O result = observed
+                    ? applyObserved(dispatch, candidates, matched, current, fromState, action, started)
+                    : untracedTransition(dispatch, current, fromState, action);
+            if (result == null || result == current || field.compareAndSet(holder, current, result)) {
+                atomicStats.record(retry, result != null);
+                if (observed) {
+                    published(dispatch, candidates, matched, current, fromState, action, result, started);
+                }
+                return Optional.ofNullable(result);
+            }
+            checkAttempts(current, action, retry, maxAttempts);
+            backoff(retry);
+        }
+    }
+
+    private boolean isObserved(Dispatch dispatch) {
+        return dispatch.metrics != null || dispatch.tracer.isEnabled() || dispatch.recorder != null;
+    }
+
+    // attempts of atomic transitions are not observed, only the published one is
+    private int matchObserved(Dispatch dispatch, Transition<?>[] candidates, O inputObject, S fromState, Action action,
+                              long started) {
+        try {
+            return matched(match(candidates, inputObject));
+        } catch (RuntimeException e) {
+            failed(dispatch, inputObject, fromState, action, started, e);
+            throw e;
+        }
+    }
+
+    @Nullable
+    private O applyObserved(Dispatch dispatch, Transition<?>[] candidates, int matched, O inputObject, S fromState,
+                            Action action, long started) {
+        if (matched < 0) {
+            return null;
+        }
+        try {
+            return applyTransition(dispatch, candidates[matched], inputObject, action);
+        } catch (RuntimeException e) {
+            failed(dispatch, inputObject, fromState, action, started, e);
+            throw e;
+        }
+    }
+
+    // emits tracer, metrics and recorder events of published atomic transition, latencies are not sampled
+    private void published(Dispatch dispatch, Transition<?>[] candidates, int matched, O inputObject, S fromState,
+                           Action action, @Nullable O result, long started) {
+        final TransitionTracer<S, O> tracer = dispatch.tracer;
+        final boolean tracing = tracer.isEnabled();
+        final long traceId = tracing ? tracer.onStart(this, inputObject, fromState, action) : 0;
+        final TransitionMetrics<S> metrics = dispatch.metrics;
+        if (metrics != null) {
+            final int decided = matched < 0 ? candidates.length : matched + 1;
+            for (int i = 0; i < decided; i++) {
+                final TransitionMetrics.Stats<S> stats = metrics.stats(candidates[i].id, fromState, action.getClass());
+                stats.guard(i == matched);
+                if (i == matched) {
+                    stats.fired.increment();
                 }
+            }
+            if (matched < 0) {
+                metrics.notFound(fromState, action.getClass());
+            }
+        }
+        if (tracing) {
+            if (matched < 0) {
+                tracer.onNotFound(this, traceId, inputObject, fromState, action);
+            } else {
+                tracer.onComplete(this, traceId, inputObject, fromState, candidates[matched].to, action, result);
+            }
+        }
+        if (dispatch.recorder != null) {
+            dispatch.recorder.onTransition(inputObject, fromState, result == null ? null : stateExtractor.apply(result),
+                                           action, matched, matched < 0 ? candidates.length : matched, started);
+        }
+    }
+
+    private void failed(Dispatch dispatch, O inputObject, S fromState, Action action, long started, RuntimeException error) {
+        final TransitionTracer<S, O> tracer = dispatch.tracer;
+        if (tracer.isEnabled()) {
+            tracer.onError(this, tracer.onStart(this, inputObject, fromState, action), inputObject, fromState, action, error);
+        }
+        if (dispatch.recorder != null) {
+            dispatch.recorder.onError(inputObject, fromState, action, started, error);
+        }
+    }
+
+    private void checkAttempts(O current, Action action, int retry, int maxAttempts) {
+        if (retry + 1 >= maxAttempts) {
+            atomicStats.exhausted(retry);
+            throw new IllegalStateException(String.format("Transition of %s with %s not published after %s attempts",
+                                                          getObjectId(current), action, maxAttempts));
+        }
+    }
+
+    /**
+     * Applies actions one by one, stopping at the first action without transition.
+     * Steps are not traced individually, tracer gets a single
+     * {@link TransitionTracer#onSequence(StateMachine, Object, SequenceResult)} record instead.
+     */
+    public SequenceResult<S, O> transitionSequence(O inputObject, Iterable<? extends Action> actions) {
+        final Dispatch dispatch = dispatch();
+        final S initialState = stateExtractor.apply(inputObject);
+        short[] trail = new short[8];
+        S state = initialState;
+        trail[0] = (short) state.ordinal();
+        int applied = 0;
+        int unmatchedIndex = -1;
+        O object = inputObject;
+        for (Action action : actions) {
+            final O next = dispatchedTransition(dispatch, object, state, action, false);
+            if (next == null) {
+                unmatchedIndex = applied;
+                break;
+            }
+            object = next;
+            state = stateExtractor.apply(object);
+            if (++applied == trail.length) {
+                trail = Arrays.copyOf(trail, trail.length * 2);
+            }
+            trail[applied] = (short) state.ordinal();
+        }
+        final SequenceResult<S, O> result = new SequenceResult<>(object, unmatchedIndex, initialState,
+                                                                 Arrays.copyOf(trail, applied + 1));
+        if (dispatch.tracer.isEnabled()) {
+            dispatch.tracer.onSequence(this, inputObject, result);
+        }
+        return result;
+    }
 
-                final Action wrappedAction;
-                if (transition.actionClass == AnyAction.class) {
-                    wrappedAction = new AnyAction(action);
+    // candidates of the object state in dispatch order, used by AsyncStateMachine evaluating guards on its own
+    Transition<?>[] candidates(O inputObject, Action action) {
+        return dispatch().candidates(stateExtractor.apply(inputObject), action.getClass());
+    }
+
+    // exit and entry transformers with state applier of given candidate
+    O enter(Transition<?> transition, O inputObject) {
+        return dispatch().pipeline(transition).apply(inputObject);
+    }
+
+    /**
+     * Transition bypassing tracer and guard feedback, used to replay already traced actions.
+     */
+    @Nullable
+    O transitionUntraced(O inputObject, Action action) {
+        return untracedTransition(dispatch(), inputObject, stateExtractor.apply(inputObject), action);
+    }
+
+    @Nullable
+    private O untracedTransition(Dispatch dispatch, O inputObject, S fromState, Action action) {
+        return untracedTransition(dispatch, dispatch.column(action.getClass()), inputObject, fromState, action);
+    }
+
+    @Nullable
+    private O untracedTransition(Dispatch dispatch, Column column, O inputObject, S fromState, Action action) {
+        if (dispatch.cache != null && column.memoized(fromState)) {
+            return dispatch.cache.transition(inputObject, action, () -> uncachedTransition(dispatch, column, inputObject, fromState, action));
+        }
+        return uncachedTransition(dispatch, column, inputObject, fromState, action);
+    }
+
+    @Nullable
+    private O uncachedTransition(Dispatch dispatch, Column column, O inputObject, S fromState, Action action) {
+        if (column.adaptive != null) {
+            final AdaptiveCell cell = column.adaptive(fromState);
+            if (cell != null) {
+                final int matched = matched(cell.match(inputObject));
+                return matched < 0 ? null : applyTransition(dispatch, cell.transitions[matched], inputObject, action);
+            }
+        }
+        return transitionWith(dispatch, column.candidates(fromState), inputObject, action);
+    }
+
+    @Nullable
+    private O instrumentedTransition(Dispatch dispatch, O inputObject, S fromState, Action action, boolean tracing) {
+        final TransitionTracer<S, O> tracer = dispatch.tracer;
+        final TransitionMetrics<S> metrics = dispatch.metrics;
+        final boolean timed = metrics != null && metrics.sampleLatency();
+        final TransitionRecorder<S, O> recorder = dispatch.recorder;
+        final long started = recorder != null ? System.nanoTime() : 0;
+        final long traceId = tracing ? tracer.onStart(this, inputObject, fromState, action) : 0;
+        int rejected = 0;
+        try {
+            for (Transition<? extends Action> transition : dispatch.candidates(fromState, action.getClass())) {
+                final GuardFeedback guardFeedback;
+                if (tracing) {
+                    guardFeedback = (string, outcome) -> {
+                        tracer.onGuard(this, traceId, inputObject, fromState, transition.to, action, string, outcome);
+                        return outcome;
+                    };
                 } else {
-                    wrappedAction = action;
+                    guardFeedback = SILENT_FEEDBACK;
+                }
+                final TransitionMetrics.Stats<S> stats = metrics != null
+                        ? metrics.stats(transition.id, fromState, action.getClass())
+                        : null;
+                final long guardStarted = timed ? System.nanoTime() : 0;
+                final boolean accepted = transition.guard.test(inputObject, guardFeedback);
+                if (stats != null) {
+                    if (timed) {
+                        stats.guardLatency.record(System.nanoTime() - guardStarted);
+                    }
+                    stats.guard(accepted);
+                }
+                if (accepted) {
+                    final O result;
+                    if (stats != null) {
+                        result = applyTransition(dispatch, transition, inputObject, action, timed ? stats : null);
+                        stats.fired.increment();
+                    } else {
+                        result = applyTransition(dispatch, transition, inputObject, action);
+                    }
+                    if (tracing) {
+                        tracer.onComplete(this, traceId, inputObject, fromState, transition.to, action, result);
+                    }
+                    if (recorder != null) {
+                        recorder.onTransition(inputObject, fromState, stateExtractor.apply(result), action,
+                                              rejected, rejected, started);
+                    }
+                    return result;
+                }
+                rejected++;
+            }
+            if (metrics != null) {
+                metrics.notFound(fromState, action.getClass());
+            }
+            if (tracing) {
+                tracer.onNotFound(this, traceId, inputObject, fromState, action);
+            }
+            if (recorder != null) {
+                recorder.onTransition(inputObject, fromState, null, action, -1, rejected, started);
+            }
+            return null;
+        } catch (RuntimeException e) {
+            if (tracing) {
+                tracer.onError(this, traceId, inputObject, fromState, action, e);
+            }
+            if (recorder != null) {
+                recorder.onError(inputObject, fromState, action, started, e);
+            }
+            throw e;
+        }
+    }
+
+    private O applyTransition(Dispatch dispatch, Transition<? extends Action> transition, O inputObject, Action action) {
+        return applyTransition(dispatch, transition, inputObject, action, null);
+    }
+
+    // records latencies into given stats, if any
+    private O applyTransition(Dispatch dispatch, Transition<? extends Action> transition, O inputObject, Action action,
+                              @Nullable TransitionMetrics.Stats<S> stats) {
+        final long started = stats != null ? System.nanoTime() : 0;
+        final O outputObject;
+        if (!inputObject.equals(transition.to)) {
+            outputObject = dispatch.pipeline(transition).apply(inputObject);
+        } else {
+            outputObject = inputObject;
+        }
+        final long transformed = stats != null ? System.nanoTime() : 0;
+
+        final Action wrappedAction;
+        if (transition.actionClass == AnyAction.class) {
+            wrappedAction = new AnyAction(action);
+        } else {
+            wrappedAction = action;
+        }
+        final O result = transition.onAction(wrappedAction, outputObject);
+        if (stats != null) {
+            stats.stateTransitionLatency.record(transformed - started);
+            stats.actionLatency.record(System.nanoTime() - transformed);
+        }
+        return result;
+    }
+
+    public BatchResult<O> transitionAll(Collection<O> objects, Action action) {
+        return transitionAll(objects, action, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Applies the same action to every object. Column of the action class is looked up once
+     * and objects are grouped by state, candidates, memoization and adaptive cell of every state
+     * are resolved once per group, then transitions are applied in parallel on given pool.
+     * Objects go through the same guards, memoization and adaptive ordering as
+     * {@link #transition(Object, Action)}. Inputs are copied, so the collection may change later.
+     */
+    public BatchResult<O> transitionAll(Collection<O> objects, Action action, ForkJoinPool pool) {
+        checkNotThreadConfined("transitionAll");
+        final Dispatch dispatch = dispatch();
+        final List<O> inputs = ImmutableList.copyOf(objects);
+        final int size = inputs.size();
+        final Object[] results = new Object[size];
+        final Column column = dispatch.column(action.getClass());
+        final int unknown = dispatch.states.length;
+        // counting sort of object indices by state ordinal, objects in unknown states go last
+        final int[] ordinals = new int[size];
+        final int[] starts = new int[unknown + 2];
+        for (int i = 0; i < size; i++) {
+            final S state = stateExtractor.apply(inputs.get(i));
+            final int ordinal = Math.min(state.ordinal(), unknown);
+            ordinals[i] = ordinal;
+            starts[ordinal + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        final int[] order = new int[size];
+        final int[] next = Arrays.copyOf(starts, unknown + 1);
+        for (int i = 0; i < size; i++) {
+            order[next[ordinals[i]]++] = i;
+        }
+        final boolean instrumented = isObserved(dispatch);
+        // per group resolution, unknown states are resolved per object
+        final Transition<?>[][] candidates = newArray(Transition[].class, unknown);
+        final AdaptiveCell[] cells = newArray(AdaptiveCell.class, unknown);
+        final boolean[] memoized = new boolean[unknown];
+        if (!instrumented) {
+            for (int ordinal = 0; ordinal < unknown; ordinal++) {
+                if (starts[ordinal + 1] > starts[ordinal]) {
+                    final S state = dispatch.states[ordinal];
+                    candidates[ordinal] = column.candidates(state);
+                    cells[ordinal] = column.adaptive != null ? column.adaptive(state) : null;
+                    memoized[ordinal] = dispatch.cache != null && column.memoized(state);
                 }
-                final O result = transition.onAction(wrappedAction, outputObject);
-                logger.info("{}:{}:END stateObject={} fromState={} toState={} action={}: transition complete: {}",
-                            machineName, transitionId, idProvider.apply(inputObject), fromState, transition.to, action.toString(), result);
-                return Optional.of(result);
             }
         }
-        logger.info("{}:{}:NOTFOUND stateObject={} fromState={} action={}: No state found {}",
-                    machineName, transitionId, idProvider.apply(inputObject), fromState, action.toString(), inputObject);
-        return Optional.empty();
+        final int threshold = Math.max(64, size / (pool.getParallelism() * 4 + 1));
+        pool.invoke(new BatchTask(0, size, threshold, index -> {
+            final int object = order[index];
+            final O input = inputs.get(object);
+            final int ordinal = ordinals[object];
+            if (instrumented) {
+                results[object] = transitionOrNull(input, action);
+            } else if (ordinal == unknown) {
+                results[object] = untracedTransition(dispatch, column, input, stateExtractor.apply(input), action);
+            } else {
+                results[object] = groupTransition(dispatch, candidates[ordinal], cells[ordinal], memoized[ordinal],
+                                                  input, action);
+            }
+        }));
+        return new BatchResult<>(inputs, results);
     }
 
-    private O handleStateTransition(O from, S fromState, S toState) {
-        O object = from;
-        for (Function<O, O> transformer : stateExit.getOrDefault(fromState, ImmutableList.of())) {
-            object = transformer.apply(object);
+    @Nullable
+    private O groupTransition(Dispatch dispatch, Transition<?>[] candidates, @Nullable AdaptiveCell cell,
+                              boolean memoized, O inputObject, Action action) {
+        final Object cached = memoized ? dispatch.cache.lookup(inputObject, action) : null;
+        if (cached != null) {
+            return dispatch.cache.result(cached);
+        }
+        final O result;
+        if (cell != null) {
+            final int matched = matched(cell.match(inputObject));
+            result = matched < 0 ? null : applyTransition(dispatch, cell.transitions[matched], inputObject, action);
+        } else {
+            result = transitionWith(dispatch, candidates, inputObject, action);
         }
-        for (Function<O, O> transformer : stateEntry.getOrDefault(toState, ImmutableList.of())) {
-            object = transformer.apply(object);
+        if (memoized) {
+            dispatch.cache.put(inputObject, action, result);
+        }
+        return result;
+    }
+
+    /**
+     * Stream based variant of {@link #transitionAll(Collection, Action)}, stream is consumed before
+     * transitions start, so objects can be grouped by state.
+     */
+    public BatchResult<O> transitionAll(Stream<O> objects, Action action) {
+        return transitionAll(objects.collect(Collectors.toList()), action);
+    }
+
+    @Nullable
+    private O transitionWith(Dispatch dispatch, Transition<?>[] candidates, O inputObject, Action action) {
+        for (Transition<? extends Action> transition : candidates) {
+            if (transition.guard.test(inputObject, SILENT_FEEDBACK)) {
+                return applyTransition(dispatch, transition, inputObject, action);
+            }
+        }
+        return null;
+    }
+
+    private static final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final IntConsumer work;
+
+        private BatchTask(int from, int to, int threshold, IntConsumer work) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    work.accept(i);
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(from, middle, threshold, work), new BatchTask(middle, to, threshold, work));
+            }
         }
-        return stateApplier.apply(object, toState);
     }
 }
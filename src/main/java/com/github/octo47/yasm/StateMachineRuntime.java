@@ -0,0 +1,385 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Owns current objects of the machine, keyed by machine id provider. Objects are sharded
+ * over fixed set of lanes, each lane is a single thread owning its objects, so actions
+ * for the same object are applied one by one without any locking while different objects
+ * are processed in parallel.
+ * <p>
+ * Each lane tracks objects with own {@link TimeoutScheduler}, so timeouts defined
+ * with {@link StateMachine.StateBuilder#permitAfter(Duration, Enum)} fire in the lane
+ * owning the object.
+ * <p>
+ * Once a {@link Conflation} policy is set for some action class, actions of that class are queued
+ * per object and pending action is collapsed with the next one of the same class, so backlog
+ * of an object falling behind stays bounded. Objects of a lane take turns applying queued actions.
+ * Other actions are applied directly, unless actions of the object are queued, then they are queued
+ * behind them to keep order.
+ */
+public class StateMachineRuntime<S extends Enum<S>, O> implements AutoCloseable {
+
+    private static final class Pending<O> {
+        private StateMachine.Action action;
+        // futures of submitted actions, conflated ones included
+        private final List<CompletableFuture<Optional<O>>> waiters = Lists.newArrayListWithCapacity(1);
+
+        private Pending(StateMachine.Action action, @Nullable CompletableFuture<Optional<O>> waiter) {
+            this.action = action;
+            if (waiter != null) {
+                waiters.add(waiter);
+            }
+        }
+    }
+
+    private final class Lane {
+        private final ExecutorService executor;
+        private final TimeoutScheduler<S, O> objects;
+        private final AtomicBoolean advancing = new AtomicBoolean();
+        // queued actions by object id, object is scheduled for drain while it has queue, guarded by lane
+        private final Map<String, Deque<Pending<O>>> pending = Maps.newHashMap();
+
+        private Lane(int index) {
+            this.executor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat(machine.getMachineName() + "-lane-" + index)
+                            .setDaemon(true)
+                            .build());
+            this.objects = new TimeoutScheduler<>(machine, clock, tick);
+        }
+
+        private int advance() {
+            advancing.set(false);
+            return objects.advance(timeoutListener);
+        }
+
+        private void enqueue(String id, StateMachine.Action action, @Nullable CompletableFuture<Optional<O>> waiter) {
+            synchronized (this) {
+                Deque<Pending<O>> queue = pending.get(id);
+                final boolean idle = queue == null;
+                if (idle) {
+                    queue = new ArrayDeque<>();
+                    pending.put(id, queue);
+                } else if (collapse(queue.peekLast(), action, waiter)) {
+                    return;
+                }
+                queue.add(new Pending<>(action, waiter));
+                if (!idle) {
+                    return;
+                }
+            }
+            executor.execute(() -> drain(id));
+        }
+
+        // action which is not conflated goes directly to the lane, unless actions of the object are queued
+        private void submit(String id, StateMachine.Action action, @Nullable CompletableFuture<Optional<O>> waiter) {
+            if (!conflations.isEmpty()) {
+                synchronized (this) {
+                    final Deque<Pending<O>> queue = pending.get(id);
+                    if (queue != null) {
+                        queue.add(new Pending<>(action, waiter));
+                        return;
+                    }
+                }
+            }
+            executor.execute(() -> apply(id, action, waiter));
+        }
+
+        private void apply(String id, StateMachine.Action action, @Nullable CompletableFuture<Optional<O>> waiter) {
+            if (waiter == null) {
+                objects.get(id).ifPresent(current -> objects.transition(current, action));
+                return;
+            }
+            try {
+                final O current = objects.get(id).orElseThrow(() -> new NoSuchElementException("No object " + id));
+                waiter.complete(objects.transition(current, action));
+            } catch (RuntimeException e) {
+                waiter.completeExceptionally(e);
+            }
+        }
+
+        // applies single pending action of the object and lets other objects go before the next one
+        private void drain(String id) {
+            final Pending<O> next;
+            synchronized (this) {
+                next = pending.get(id).poll();
+            }
+            try {
+                final O current = objects.get(id).orElseThrow(() -> new NoSuchElementException("No object " + id));
+                final Optional<O> result = objects.transition(current, next.action);
+                next.waiters.forEach(waiter -> waiter.complete(result));
+            } catch (RuntimeException e) {
+                next.waiters.forEach(waiter -> waiter.completeExceptionally(e));
+            }
+            synchronized (this) {
+                if (pending.get(id).isEmpty()) {
+                    pending.remove(id);
+                    return;
+                }
+            }
+            executor.execute(() -> drain(id));
+        }
+
+        private synchronized int pendingActions() {
+            int actions = 0;
+            for (Deque<Pending<O>> queue : pending.values()) {
+                actions += queue.size();
+            }
+            return actions;
+        }
+    }
+
+    private final StateMachine<S, O> machine;
+    private final Clock clock;
+    private final Duration tick;
+    private final BiConsumer<O, O> timeoutListener;
+    private final Lane[] lanes;
+    @Nullable
+    private final ScheduledExecutorService ticker;
+    private final Map<Class<?>, Conflation<StateMachine.Action>> conflations = new ConcurrentHashMap<>();
+    private final Map<Class<?>, LongAdder> conflated = new ConcurrentHashMap<>();
+
+    public StateMachineRuntime(StateMachine<S, O> machine) {
+        this(machine, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StateMachineRuntime(StateMachine<S, O> machine, int lanes) {
+        this(machine, lanes, Clock.systemUTC(), Duration.ofMillis(10), (before, after) -> {
+        });
+    }
+
+    /**
+     * @param timeoutListener called in the lane thread with (object before, object after) for every fired timeout
+     */
+    public StateMachineRuntime(StateMachine<S, O> machine, int lanes, Clock clock, Duration tick, BiConsumer<O, O> timeoutListener) {
+        Preconditions.checkArgument(lanes > 0, "At least one lane required: %s", lanes);
+        machine.checkNotThreadConfined("runtime");
+        this.machine = machine;
+        this.clock = clock;
+        this.tick = tick;
+        this.timeoutListener = timeoutListener;
+        machine.freeze();
+        @SuppressWarnings("unchecked")
+        final Lane[] created = (Lane[]) new StateMachineRuntime<?, ?>.Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            created[i] = new Lane(i);
+        }
+        this.lanes = created;
+        if (machine.hasTimeouts()) {
+            this.ticker = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat(machine.getMachineName() + "-ticker")
+                            .setDaemon(true)
+                            .build());
+            this.ticker.scheduleAtFixedRate(this::tick, tick.toMillis(), tick.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.ticker = null;
+        }
+    }
+
+    /**
+     * Starts owning given object, replacing current object with the same id.
+     */
+    public CompletableFuture<O> register(O object) {
+        final Lane lane = lane(machine.getObjectId(object));
+        return CompletableFuture.supplyAsync(() -> {
+            lane.objects.track(object);
+            return object;
+        }, lane.executor);
+    }
+
+    public CompletableFuture<Optional<O>> get(String id) {
+        final Lane lane = lane(id);
+        return CompletableFuture.supplyAsync(() -> lane.objects.get(id), lane.executor);
+    }
+
+    public CompletableFuture<Optional<O>> remove(String id) {
+        final Lane lane = lane(id);
+        return CompletableFuture.supplyAsync(() -> {
+            final Optional<O> removed = lane.objects.get(id);
+            lane.objects.untrack(id);
+            return removed;
+        }, lane.executor);
+    }
+
+    /**
+     * Applies action to the current object with given id.
+     * Future completes with empty result if no transition found and fails
+     * with {@link NoSuchElementException} if there is no such object.
+     */
+    public CompletableFuture<Optional<O>> submit(String id, StateMachine.Action action) {
+        final Lane lane = lane(id);
+        final CompletableFuture<Optional<O>> result = new CompletableFuture<>();
+        if (conflations.containsKey(action.getClass())) {
+            lane.enqueue(id, action, result);
+        } else {
+            lane.submit(id, action, result);
+        }
+        return result;
+    }
+
+    /**
+     * Fire and forget version of {@link #submit(String, StateMachine.Action)}, unknown ids are ignored.
+     */
+    public void tell(String id, StateMachine.Action action) {
+        final Lane lane = lane(id);
+        if (conflations.containsKey(action.getClass())) {
+            lane.enqueue(id, action, null);
+        } else {
+            lane.submit(id, action, null);
+        }
+    }
+
+    /**
+     * Fires expired timeouts in all lanes.
+     *
+     * @return number of expired deadlines
+     */
+    public CompletableFuture<Integer> advance() {
+        final CompletableFuture<?>[] advanced = new CompletableFuture<?>[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            final Lane lane = lanes[i];
+            advanced[i] = CompletableFuture.supplyAsync(lane::advance, lane.executor);
+        }
+        return CompletableFuture.allOf(advanced).thenApply(ignored -> {
+            int expired = 0;
+            for (CompletableFuture<?> future : advanced) {
+                expired += (Integer) future.join();
+            }
+            return expired;
+        });
+    }
+
+    /**
+     * Sets conflation policy for actions of given class, should be set before actions are submitted.
+     * Future of conflated {@link #submit(String, StateMachine.Action)} completes with result of the
+     * action it was collapsed into.
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends StateMachine.Action> void conflate(Class<A> actionClass, Conflation<A> conflation) {
+        conflations.put(actionClass, (Conflation<StateMachine.Action>) conflation);
+        conflated.putIfAbsent(actionClass, new LongAdder());
+    }
+
+    /**
+     * @return number of conflated actions of given class
+     */
+    public long getConflated(Class<? extends StateMachine.Action> actionClass) {
+        final LongAdder count = conflated.get(actionClass);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return number of conflated actions by action class
+     */
+    public Map<Class<?>, Long> getConflated() {
+        final ImmutableMap.Builder<Class<?>, Long> counts = ImmutableMap.builder();
+        conflated.forEach((actionClass, count) -> counts.put(actionClass, count.sum()));
+        return counts.build();
+    }
+
+    /**
+     * @return number of actions queued per object and not applied yet, actions are queued only while conflation is used
+     */
+    public int getPendingActions() {
+        int actions = 0;
+        for (Lane lane : lanes) {
+            actions += lane.pendingActions();
+        }
+        return actions;
+    }
+
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    public StateMachine<S, O> getMachine() {
+        return machine;
+    }
+
+    /**
+     * Stops the lanes once already submitted actions are applied. Waits for the lanes even
+     * if interrupted, interrupt status is restored afterwards.
+     */
+    @Override
+    public void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+        boolean interrupted = false;
+        for (Lane lane : lanes) {
+            while (true) {
+                try {
+                    lane.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tick() {
+        for (Lane lane : lanes) {
+            // don't pile up advances behind busy lane
+            if (lane.advancing.compareAndSet(false, true)) {
+                lane.executor.execute(lane::advance);
+            }
+        }
+    }
+
+    // called under lane lock, tail is the last pending action which is not started yet
+    private boolean collapse(@Nullable Pending<O> tail, StateMachine.Action action,
+                             @Nullable CompletableFuture<Optional<O>> waiter) {
+        if (tail == null || tail.action.getClass() != action.getClass()) {
+            return false;
+        }
+        final Conflation<StateMachine.Action> conflation = conflations.get(action.getClass());
+        final StateMachine.Action conflated = conflation != null ? conflation.conflate(tail.action, action) : null;
+        if (conflated == null) {
+            return false;
+        }
+        tail.action = conflated;
+        if (waiter != null) {
+            tail.waiters.add(waiter);
+        }
+        this.conflated.get(action.getClass()).increment();
+        return true;
+    }
+
+    private Lane lane(String id) {
+        final int hash = id.hashCode();
+        return lanes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length];
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.octo47.yasm;
+
+import com.google.common.collect.Maps;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Drives timeout transitions defined with {@link StateMachine.StateBuilder#permitAfter(Duration, Enum)}.
+ * Scheduler tracks current object per id (as given by machine id provider): deadline is registered
+ * when object enters a state with timeout and cancelled when it leaves the state. Timeout inherited
+ * from a parent state keeps running while object moves between sub states of the parent, as the
+ * parent is neither exited nor entered. So
+ * {@link #advance(BiConsumer)} touches only objects whose deadlines expired instead of polling
+ * every object with {@link StateMachine#loop(Object)}.
+ * <p>
+ * Scheduler is not thread safe, it is expected to be owned by single driving thread.
+ */
+public class TimeoutScheduler<S extends Enum<S>, O> {
+
+    private static final class Entry<S, O> {
+        private O object;
+        private S state;
+        @Nullable
+        private TimingWheel.Timeout<Entry<S, O>> timeout;
+
+        private Entry(O object, S state) {
+            this.object = object;
+            this.state = state;
+        }
+    }
+
+    private final StateMachine<S, O> machine;
+    private final Clock clock;
+    private final TimingWheel<Entry<S, O>> wheel;
+    private final Map<String, Entry<S, O>> entries = Maps.newHashMap();
+
+    public TimeoutScheduler(StateMachine<S, O> machine, Clock clock) {
+        this(machine, clock, Duration.ofMillis(10));
+    }
+
+    public TimeoutScheduler(StateMachine<S, O> machine, Clock clock, Duration tick) {
+        // timeouts fire from advance(), outside of any binding of the calling thread
+        machine.checkNotThreadConfined("scheduler");
+        this.machine = machine;
+        this.clock = clock;
+        this.wheel = new TimingWheel<>(tick.toMillis(), clock.millis());
+    }
+
+    /**
+     * Starts tracking given object or replaces tracked object with the same id.
+     * Deadline is (re)started only if state of the object differs from tracked one and
+     * the state declaring timeout was exited or entered on the way.
+     */
+    public void track(O object) {
+        final String id = machine.getObjectId(object);
+        final S state = machine.getState(object);
+        final Entry<S, O> entry = entries.get(id);
+        if (entry == null) {
+            final Entry<S, O> created = new Entry<>(object, state);
+            entries.put(id, created);
+            schedule(created);
+        } else if (entry.state != state && !machine.keepsTimeout(entry.state, state)) {
+            reschedule(entry, object);
+        } else {
+            entry.object = object;
+            entry.state = state;
+        }
+    }
+
+    /**
+     * Stops tracking object with given id, cancelling its deadline.
+     */
+    public void untrack(String id) {
+        final Entry<S, O> entry = entries.remove(id);
+        if (entry != null) {
+            cancel(entry);
+        }
+    }
+
+    public Optional<O> get(String id) {
+        final Entry<S, O> entry = entries.get(id);
+        return entry == null ? Optional.empty() : Optional.of(entry.object);
+    }
+
+    /**
+     * Applies action to tracked object and tracks outcome.
+     */
+    public Optional<O> transition(O object, StateMachine.Action action) {
+        final O result = machine.transitionOrNull(object, action);
+        if (result != null) {
+            track(result);
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /**
+     * Fires timeout transitions for all objects with expired deadlines.
+     *
+     * @param listener called with (object before, object after) for every fired timeout
+     * @return number of expired deadlines
+     */
+    public int advance(BiConsumer<O, O> listener) {
+        return wheel.advance(clock.millis(), timeout -> {
+            final Entry<S, O> entry = timeout.getPayload();
+            entry.timeout = null;
+            final O before = entry.object;
+            final Duration duration = Duration.ofMillis(machine.getTimeoutMillis(entry.state));
+            final O after = machine.transitionOrNull(before, new StateMachine.TimeoutAction(duration));
+            if (after != null) {
+                // timeout transition always (re)enters the state, even if it is the same one
+                reschedule(entry, after);
+                listener.accept(before, after);
+            }
+        });
+    }
+
+    public int advance() {
+        return advance((before, after) -> {
+        });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int pendingTimeouts() {
+        return wheel.size();
+    }
+
+    private void reschedule(Entry<S, O> entry, O object) {
+        cancel(entry);
+        entry.object = object;
+        entry.state = machine.getState(object);
+        schedule(entry);
+    }
+
+    private void schedule(Entry<S, O> entry) {
+        final long timeoutMillis = machine.getTimeoutMillis(entry.state);
+        if (timeoutMillis >= 0) {
+            entry.timeout = wheel.schedule(entry, clock.millis() + timeoutMillis);
+        }
+    }
+
+    private void cancel(Entry<S, O> entry) {
+        if (entry.timeout != null) {
+            entry.timeout.cancel();
+            entry.timeout = null;
+        }
+    }
+}
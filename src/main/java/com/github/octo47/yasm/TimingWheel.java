@@ -0,0 +1,223 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Hierarchical timing wheel. Each level has 2^bits slots, slot of level L covers
+ * 2^(bits*L) ticks. Timeout lands to the lowest level where its deadline shares
+ * all higher digits with current tick and cascades down while wheel advances,
+ * so schedule and cancel are O(1) and advance is O(1) per tick plus expired timeouts.
+ * Deadlines beyond the top level are parked in overflow list and re-examined
+ * each time the top level wraps.
+ * <p>
+ * Wheel is not thread safe, it is expected to be owned by single driving thread.
+ *
+ * @param <T> payload of scheduled timeouts
+ */
+public class TimingWheel<T> {
+
+    public static final class Timeout<T> {
+        private final T payload;
+        private final long deadlineMillis;
+        private long deadlineTick;
+        @Nullable
+        private TimingWheel<T> wheel;
+        @Nullable
+        private Timeout<T> prev;
+        @Nullable
+        private Timeout<T> next;
+        @Nullable
+        private Bucket<T> bucket;
+
+        private Timeout(TimingWheel<T> wheel, T payload, long deadlineMillis, long deadlineTick) {
+            this.wheel = wheel;
+            this.payload = payload;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        /**
+         * @return true if timeout was pending and is cancelled now
+         */
+        public boolean cancel() {
+            if (wheel == null) {
+                return false;
+            }
+            wheel.size--;
+            wheel = null;
+            if (bucket != null) {
+                bucket.remove(this);
+            }
+            return true;
+        }
+
+        public boolean isPending() {
+            return wheel != null;
+        }
+    }
+
+    private static final class Bucket<T> {
+        @Nullable
+        private Timeout<T> head;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        @Nullable
+        Timeout<T> drain() {
+            final Timeout<T> drained = head;
+            for (Timeout<T> timeout = head; timeout != null; timeout = timeout.next) {
+                timeout.bucket = null;
+            }
+            head = null;
+            return drained;
+        }
+    }
+
+    private final long tickMillis;
+    private final int bits;
+    private final int levels;
+    private final long mask;
+    private final Bucket<T>[][] buckets;
+    private final Bucket<T> overflow = new Bucket<>();
+    // next tick to be processed
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMillis, long startMillis) {
+        this(tickMillis, startMillis, 6, 4);
+    }
+
+    public TimingWheel(long tickMillis, long startMillis, int bits, int levels) {
+        Preconditions.checkArgument(tickMillis > 0, "Tick should be positive: %s", tickMillis);
+        Preconditions.checkArgument(bits > 0 && levels > 0 && bits * levels < 63,
+                                    "Wheel of %s levels of %s bits is not supported", levels, bits);
+        this.tickMillis = tickMillis;
+        this.bits = bits;
+        this.levels = levels;
+        this.mask = (1L << bits) - 1;
+        @SuppressWarnings("unchecked")
+        final Bucket<T>[][] buckets = (Bucket<T>[][]) new Bucket<?>[levels][1 << bits];
+        this.buckets = buckets;
+        for (Bucket<T>[] level : buckets) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new Bucket<>();
+            }
+        }
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    public Timeout<T> schedule(T payload, long deadlineMillis) {
+        // round up, timeout never fires earlier than its deadline
+        final long deadlineTick = Math.max(currentTick, (deadlineMillis + tickMillis - 1) / tickMillis);
+        final Timeout<T> timeout = new Timeout<>(this, payload, deadlineMillis, deadlineTick);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Expires all timeouts with deadline not later than given time.
+     *
+     * @return number of expired timeouts
+     */
+    public int advance(long nowMillis, Consumer<Timeout<T>> expired) {
+        final long targetTick = nowMillis / tickMillis;
+        int count = 0;
+        while (currentTick <= targetTick) {
+            if (size == 0) {
+                currentTick = targetTick + 1;
+                break;
+            }
+            cascade(currentTick);
+            Timeout<T> timeout = buckets[0][(int) (currentTick & mask)].drain();
+            currentTick++;
+            while (timeout != null) {
+                final Timeout<T> next = timeout.next;
+                timeout.next = null;
+                timeout.prev = null;
+                if (timeout.wheel != null) {
+                    timeout.wheel = null;
+                    size--;
+                    count++;
+                    expired.accept(timeout);
+                }
+                timeout = next;
+            }
+        }
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private void cascade(long tick) {
+        if ((tick & ((1L << (bits * levels)) - 1)) == 0) {
+            replace(overflow.drain());
+        }
+        for (int level = levels - 1; level > 0; level--) {
+            if ((tick & ((1L << (bits * level)) - 1)) == 0) {
+                replace(buckets[level][(int) ((tick >>> (bits * level)) & mask)].drain());
+            }
+        }
+    }
+
+    private void replace(@Nullable Timeout<T> timeout) {
+        while (timeout != null) {
+            final Timeout<T> next = timeout.next;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout<T> timeout) {
+        final long deadlineTick = Math.max(timeout.deadlineTick, currentTick);
+        timeout.deadlineTick = deadlineTick;
+        for (int level = 0; level < levels; level++) {
+            final int higher = bits * (level + 1);
+            if ((deadlineTick >>> higher) == (currentTick >>> higher)) {
+                buckets[level][(int) ((deadlineTick >>> (bits * level)) & mask)].add(timeout);
+                return;
+            }
+        }
+        overflow.add(timeout);
+    }
+}
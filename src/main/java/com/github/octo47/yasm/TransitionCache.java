@@ -0,0 +1,169 @@
+package com.github.octo47.yasm;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToIntBiFunction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounded memoization cache of transition results keyed by input object and action
+ * ({@code equals}/{@code hashCode} of both), enabled with {@link StateMachine#enableMemoization(long)},
+ * so replayed, decoded or copied inputs hit results of equal ones. Results are bucketed per equal
+ * input object, so lookup hashes the object once and allocates nothing, actions are compared
+ * within the bucket.
+ * <p>
+ * Every input object keeps results of up to {@value #ACTIONS_PER_OBJECT} last actions, NOTFOUND
+ * outcomes are cached as well. Statistics are always recorded.
+ */
+public class TransitionCache<O> {
+
+    private static final int ACTIONS_PER_OBJECT = 8;
+    private static final Object NOT_FOUND = new Object();
+
+    // immutable (action, result) pairs of equal input objects, replaced on every miss
+    private static final class Results {
+        private final Object[] entries;
+
+        private Results(Object[] entries) {
+            this.entries = entries;
+        }
+
+        @Nullable
+        private Object get(StateMachine.Action action) {
+            final Object[] entries = this.entries;
+            for (int i = 0; i < entries.length; i += 2) {
+                if (action.equals(entries[i])) {
+                    return entries[i + 1];
+                }
+            }
+            return null;
+        }
+
+        // drops the oldest pair when full
+        private Results with(StateMachine.Action action, Object result) {
+            final int from = entries.length == ACTIONS_PER_OBJECT * 2 ? 2 : 0;
+            final Object[] updated = Arrays.copyOfRange(entries, from, entries.length + 2);
+            updated[updated.length - 2] = action;
+            updated[updated.length - 1] = result;
+            return new Results(updated);
+        }
+
+        private int size() {
+            return entries.length / 2;
+        }
+    }
+
+    private final Cache<Object, Results> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    TransitionCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumSize)
+                .<Object, Results>weigher((object, results) -> results.size())
+                .removalListener(this::removed)
+                .build();
+    }
+
+    /**
+     * @param weigher weight of (input, result) entry, result is null for NOTFOUND
+     */
+    @SuppressWarnings("unchecked")
+    TransitionCache(long maximumWeight, ToIntBiFunction<O, O> weigher) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .<Object, Results>weigher((object, results) -> {
+                    int weight = 0;
+                    for (int i = 1; i < results.entries.length; i += 2) {
+                        final Object result = results.entries[i];
+                        weight += weigher.applyAsInt((O) object, result == NOT_FOUND ? null : (O) result);
+                    }
+                    return weight;
+                })
+                .removalListener(this::removed)
+                .build();
+    }
+
+    @Nullable
+    O transition(O object, StateMachine.Action action, Supplier<O> transition) {
+        final Object cached = lookup(object, action);
+        if (cached != null) {
+            return result(cached);
+        }
+        final O transitioned = transition.get();
+        put(object, action, transitioned);
+        return transitioned;
+    }
+
+    /**
+     * @return cached result to be unwrapped with {@link #result(Object)} or null if there is none
+     */
+    @Nullable
+    Object lookup(O object, StateMachine.Action action) {
+        final Results results = cache.getIfPresent(object);
+        final Object result = results != null ? results.get(action) : null;
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    O result(Object cached) {
+        return cached == NOT_FOUND ? null : (O) cached;
+    }
+
+    void put(O object, StateMachine.Action action, @Nullable O transitioned) {
+        final Object cached = transitioned == null ? NOT_FOUND : transitioned;
+        cache.asMap().compute(object, (key, current) -> current == null
+                ? new Results(new Object[]{action, cached})
+                : current.with(action, cached));
+    }
+
+    /**
+     * @return hits and misses of (object, action) lookups and evictions of object buckets
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+    }
+
+    /**
+     * @return number of cached results
+     */
+    public long size() {
+        long size = 0;
+        for (Results results : cache.asMap().values()) {
+            size += results.size();
+        }
+        return size;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private void removed(RemovalNotification<Object, Results> notification) {
+        if (notification.wasEvicted()) {
+            evictions.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransitionCache{" +
+                "size=" + size() +
+                ", stats=" + stats() +
+                '}';
+    }
+}
@@ -0,0 +1,274 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of (entity id, action type id, action payload) records stored
+ * in fixed size memory mapped segment files. Record position is global offset in the journal,
+ * segment file is named after position of its first byte.
+ * <p>
+ * Record layout: {@code int bodyLength, int crc32(body), short idLength, id (UTF-8), int typeId, payload}.
+ * Zero length marks end of written data in the segment, records with broken checksum
+ * (torn writes) end the journal on open.
+ * <p>
+ * Appends are serialized and only copy bytes into mapped segment. Durability is provided by
+ * {@link #sync(long)} with group commit: single force covers all records appended so far,
+ * so concurrent writers waiting for sync share one force.
+ */
+public class TransitionJournal implements Closeable {
+
+    private static final String SUFFIX = ".journal";
+    private static final int HEADER = 8;
+
+    public interface RecordConsumer {
+        void accept(long position, String entityId, int typeId, byte[] payload);
+    }
+
+    private static final class Segment {
+        private final long base;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long base, FileChannel channel, MappedByteBuffer buffer) {
+            this.base = base;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Object syncLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    // end of last appended record
+    private long appended;
+    private volatile long durable;
+
+    public TransitionJournal(Path directory) throws IOException {
+        this(directory, 64 << 20);
+    }
+
+    public TransitionJournal(Path directory, int segmentSize) throws IOException {
+        Preconditions.checkArgument(segmentSize > HEADER * 2, "Segment size is too small: %s", segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        final List<Long> segments = segments();
+        final long base = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.current = open(base);
+        this.current.buffer.position(scan(current.buffer.duplicate(), 0, Long.MAX_VALUE, base, null));
+        this.appended = base + current.buffer.position();
+        this.durable = appended;
+    }
+
+    /**
+     * @return position of appended record
+     */
+    public synchronized long append(String entityId, int typeId, byte[] payload) {
+        final byte[] id = entityId.getBytes(StandardCharsets.UTF_8);
+        final int bodyLength = 2 + id.length + 4 + payload.length;
+        Preconditions.checkArgument(id.length <= Short.MAX_VALUE, "Entity id is too long: %s", entityId);
+        Preconditions.checkArgument(HEADER + bodyLength + HEADER <= segmentSize,
+                                    "Record of %s bytes doesn't fit segment", bodyLength);
+        // keep room for zero length marker at the end of segment
+        if (current.buffer.remaining() < HEADER + bodyLength + HEADER) {
+            roll();
+        }
+        final MappedByteBuffer buffer = current.buffer;
+        final int start = buffer.position();
+        buffer.position(start + HEADER);
+        buffer.putShort((short) id.length).put(id).putInt(typeId).put(payload);
+        final ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER).limit(start + HEADER + bodyLength);
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, bodyLength);
+        final long position = current.base + start;
+        appended = position + HEADER + bodyLength;
+        return position;
+    }
+
+    /**
+     * Makes sure record at given position is durable.
+     */
+    public void sync(long position) {
+        if (durable > position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable > position) {
+                return;
+            }
+            final long target;
+            final MappedByteBuffer buffer;
+            synchronized (this) {
+                target = appended;
+                buffer = current.buffer;
+            }
+            buffer.force();
+            durable = target;
+        }
+    }
+
+    public void sync() {
+        final long position;
+        synchronized (this) {
+            position = appended - 1;
+        }
+        sync(position);
+    }
+
+    /**
+     * @return position next record will be appended at
+     */
+    public synchronized long position() {
+        return appended;
+    }
+
+    /**
+     * @return position of the first record still kept in the journal
+     */
+    public long firstPosition() throws IOException {
+        final List<Long> segments = segments();
+        return segments.isEmpty() ? 0 : segments.get(0);
+    }
+
+    /**
+     * Reads all records appended so far starting from given record position.
+     *
+     * @return position after the last record read
+     */
+    public long read(long from, RecordConsumer consumer) throws IOException {
+        final long end;
+        final Segment last;
+        synchronized (this) {
+            end = appended;
+            last = current;
+        }
+        long position = Math.max(from, firstPosition());
+        for (long base : segments()) {
+            if (base + segmentSize <= position || base > last.base) {
+                continue;
+            }
+            final ByteBuffer buffer;
+            if (base == last.base) {
+                buffer = last.buffer.duplicate();
+            } else {
+                try (FileChannel channel = FileChannel.open(segmentPath(base), StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segmentSize);
+                }
+            }
+            final int offset = (int) Math.max(0, position - base);
+            position = base + scan(buffer, offset, end, base, consumer);
+        }
+        return position;
+    }
+
+    /**
+     * Deletes segments containing only records before given position.
+     */
+    public void truncateBefore(long position) throws IOException {
+        final long currentBase;
+        synchronized (this) {
+            currentBase = current.base;
+        }
+        for (long base : segments()) {
+            if (base + segmentSize <= position && base < currentBase) {
+                Files.deleteIfExists(segmentPath(base));
+            }
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (this) {
+            current.channel.close();
+        }
+    }
+
+    private int scan(ByteBuffer buffer, int offset, long end, long base, RecordConsumer consumer) {
+        final CRC32 checksum = new CRC32();
+        int position = offset;
+        while (position + HEADER <= buffer.capacity() && base + position < end) {
+            final int bodyLength = buffer.getInt(position);
+            if (bodyLength <= 0 || position + HEADER + bodyLength > buffer.capacity()) {
+                break;
+            }
+            final ByteBuffer body = buffer.duplicate();
+            body.limit(position + HEADER + bodyLength).position(position + HEADER);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            if (consumer != null) {
+                final byte[] id = new byte[body.getShort()];
+                body.get(id);
+                final int typeId = body.getInt();
+                final byte[] payload = new byte[body.remaining()];
+                body.get(payload);
+                consumer.accept(base + position, new String(id, StandardCharsets.UTF_8), typeId, payload);
+            }
+            position += HEADER + bodyLength;
+        }
+        return position;
+    }
+
+    private void roll() {
+        final Segment previous = current;
+        previous.buffer.force();
+        try {
+            current = open(previous.base + segmentSize);
+            previous.channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Segment open(long base) throws IOException {
+        final FileChannel channel = FileChannel.open(segmentPath(base),
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.READ,
+                                                     StandardOpenOption.WRITE);
+        return new Segment(base, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%019d%s", base, SUFFIX));
+    }
+
+    private List<Long> segments() throws IOException {
+        final List<Long> segments = Lists.newArrayList();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,261 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per transition metrics of a {@link StateMachine}, enabled with {@link StateMachine#enableMetrics(int)}.
+ * For every defined transition (fromState, action class, toState) metrics count fired transitions,
+ * accepted and rejected guard decisions and keep latency histograms of guard, state transition
+ * (exit and entry transformers with state applier) and action callback. NOTFOUND outcomes are
+ * counted per (fromState, action class).
+ * <p>
+ * Transitions matched through a subclass of their action class or from a nested state are accounted
+ * separately, per (nested state, concrete action class, toState), {@link StateMachine#ANY} transitions
+ * are accounted under {@link StateMachine.AnyAction} they are applied with.
+ * <p>
+ * Counters are {@link LongAdder}s and histograms are lock free, so {@link #snapshot()}
+ * can be taken without stopping traffic. To lower overhead further latencies can be sampled,
+ * counters are always exact.
+ */
+public class TransitionMetrics<S extends Enum<S>> {
+
+    static final class Stats<S> {
+        private final S from;
+        private final Class<?> actionClass;
+        private final S to;
+        final LongAdder fired = new LongAdder();
+        final LongAdder guardAccepted = new LongAdder();
+        final LongAdder guardRejected = new LongAdder();
+        final LatencyHistogram guardLatency = new LatencyHistogram();
+        final LatencyHistogram stateTransitionLatency = new LatencyHistogram();
+        final LatencyHistogram actionLatency = new LatencyHistogram();
+        // stats of this transition matched through action subclass or nested state, by state ordinal
+        private final Map<Class<?>, AtomicReferenceArray<Stats<S>>> matched = new ConcurrentHashMap<>();
+
+        Stats(S from, Class<?> actionClass, S to) {
+            this.from = from;
+            this.actionClass = actionClass;
+            this.to = to;
+        }
+
+        void guard(boolean accepted) {
+            if (accepted) {
+                guardAccepted.increment();
+            } else {
+                guardRejected.increment();
+            }
+        }
+    }
+
+    private final int latencySampling;
+    // NOTFOUND counters are resolved by state ordinal and action class without allocation,
+    // every created counter is also listed for snapshots as ClassValue can't be iterated
+    private final Queue<Pair<Pair<S, Class<?>>, LongAdder>> notFoundCounters = new ConcurrentLinkedQueue<>();
+    private ClassValue<LongAdder>[] notFound;
+    private Stats<S>[] stats;
+    private int stateCount;
+
+    TransitionMetrics(int latencySampling) {
+        Preconditions.checkArgument(latencySampling > 0, "Sampling should be positive: %s", latencySampling);
+        this.latencySampling = latencySampling;
+    }
+
+    // called once when machine is frozen, published with dispatch table
+    void init(Stats<S>[] stats, S[] states) {
+        this.stats = stats;
+        this.stateCount = states.length;
+        @SuppressWarnings("unchecked")
+        final ClassValue<LongAdder>[] notFound = (ClassValue<LongAdder>[]) new ClassValue<?>[states.length];
+        this.notFound = notFound;
+        for (S state : states) {
+            notFound[state.ordinal()] = new ClassValue<LongAdder>() {
+                @Override
+                protected LongAdder computeValue(Class<?> type) {
+                    final LongAdder counter = new LongAdder();
+                    notFoundCounters.add(Pair.of(Pair.of(state, type), counter));
+                    return counter;
+                }
+            };
+        }
+    }
+
+    Stats<S> stats(int transitionId, S fromState, Class<?> actionClass) {
+        final Stats<S> defined = stats[transitionId];
+        final int ordinal = fromState.ordinal();
+        // ANY transitions are applied with AnyAction whatever the action is
+        final Class<?> matchedClass = defined.actionClass == StateMachine.AnyAction.class
+                ? StateMachine.AnyAction.class
+                : actionClass;
+        if (defined.from == fromState && defined.actionClass == matchedClass || ordinal >= stateCount) {
+            return defined;
+        }
+        AtomicReferenceArray<Stats<S>> byState = defined.matched.get(matchedClass);
+        if (byState == null) {
+            byState = defined.matched.computeIfAbsent(matchedClass, type -> new AtomicReferenceArray<>(stateCount));
+        }
+        Stats<S> matched = byState.get(ordinal);
+        if (matched == null) {
+            byState.compareAndSet(ordinal, null, new Stats<>(fromState, matchedClass, defined.to));
+            matched = byState.get(ordinal);
+        }
+        return matched;
+    }
+
+    boolean sampleLatency() {
+        return latencySampling == 1 || ThreadLocalRandom.current().nextInt(latencySampling) == 0;
+    }
+
+    void notFound(S fromState, Class<?> actionClass) {
+        if (fromState.ordinal() < notFound.length) {
+            notFound[fromState.ordinal()].get(actionClass).increment();
+        }
+    }
+
+    public Snapshot<S> snapshot() {
+        final ImmutableList.Builder<TransitionSnapshot<S>> transitions = ImmutableList.builder();
+        for (Stats<S> transition : stats) {
+            transitions.add(new TransitionSnapshot<>(transition));
+        }
+        for (Stats<S> transition : stats) {
+            for (AtomicReferenceArray<Stats<S>> byState : transition.matched.values()) {
+                for (int i = 0; i < byState.length(); i++) {
+                    final Stats<S> matched = byState.get(i);
+                    if (matched != null) {
+                        transitions.add(new TransitionSnapshot<>(matched));
+                    }
+                }
+            }
+        }
+        final Map<Pair<S, Class<?>>, Long> notFound = Maps.newHashMap();
+        for (Pair<Pair<S, Class<?>>, LongAdder> counter : notFoundCounters) {
+            notFound.merge(counter.getLeft(), counter.getRight().sum(), Long::sum);
+        }
+        return new Snapshot<>(transitions.build(), ImmutableMap.copyOf(notFound));
+    }
+
+    public static final class Snapshot<S> {
+        private final List<TransitionSnapshot<S>> transitions;
+        private final Map<Pair<S, Class<?>>, Long> notFound;
+
+        private Snapshot(List<TransitionSnapshot<S>> transitions, Map<Pair<S, Class<?>>, Long> notFound) {
+            this.transitions = transitions;
+            this.notFound = notFound;
+        }
+
+        /**
+         * @return metrics of every defined transition in definition order, followed by metrics
+         * of transitions matched through action subclasses or nested states
+         */
+        public List<TransitionSnapshot<S>> getTransitions() {
+            return transitions;
+        }
+
+        /**
+         * @return NOTFOUND outcomes per (fromState, action class)
+         */
+        public Map<Pair<S, Class<?>>, Long> getNotFound() {
+            return notFound;
+        }
+
+        @Override
+        public String toString() {
+            return "TransitionMetrics{" +
+                    "transitions=" + transitions +
+                    ", notFound=" + notFound +
+                    '}';
+        }
+    }
+
+    public static final class TransitionSnapshot<S> {
+        private final S from;
+        private final Class<?> actionClass;
+        private final S to;
+        private final long fired;
+        private final long guardAccepted;
+        private final long guardRejected;
+        private final LatencyHistogram.Snapshot guardLatency;
+        private final LatencyHistogram.Snapshot stateTransitionLatency;
+        private final LatencyHistogram.Snapshot actionLatency;
+
+        private TransitionSnapshot(Stats<S> stats) {
+            this.from = stats.from;
+            this.actionClass = stats.actionClass;
+            this.to = stats.to;
+            this.fired = stats.fired.sum();
+            this.guardAccepted = stats.guardAccepted.sum();
+            this.guardRejected = stats.guardRejected.sum();
+            this.guardLatency = stats.guardLatency.snapshot();
+            this.stateTransitionLatency = stats.stateTransitionLatency.snapshot();
+            this.actionLatency = stats.actionLatency.snapshot();
+        }
+
+        public S getFrom() {
+            return from;
+        }
+
+        public Class<?> getActionClass() {
+            return actionClass;
+        }
+
+        public S getTo() {
+            return to;
+        }
+
+        public long getFired() {
+            return fired;
+        }
+
+        public long getGuardAccepted() {
+            return guardAccepted;
+        }
+
+        public long getGuardRejected() {
+            return guardRejected;
+        }
+
+        /**
+         * @return share of rejected guard decisions
+         */
+        public double getGuardRejectRate() {
+            final long decisions = guardAccepted + guardRejected;
+            return decisions == 0 ? 0 : (double) guardRejected / decisions;
+        }
+
+        public LatencyHistogram.Snapshot getGuardLatency() {
+            return guardLatency;
+        }
+
+        public LatencyHistogram.Snapshot getStateTransitionLatency() {
+            return stateTransitionLatency;
+        }
+
+        public LatencyHistogram.Snapshot getActionLatency() {
+            return actionLatency;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -(" + actionClass.getSimpleName() + ")-> " + to +
+                    "{fired=" + fired +
+                    ", guardAccepted=" + guardAccepted +
+                    ", guardRejected=" + guardRejected +
+                    ", guardLatency=" + guardLatency +
+                    ", stateTransitionLatency=" + stateTransitionLatency +
+                    ", actionLatency=" + actionLatency +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang3.tuple.Pair;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reactive streams processor applying (entity id, action) items to objects it owns and emitting
+ * (entity id, transitioned object) results, empty result means NOTFOUND or unknown entity.
+ * <p>
+ * Items are partitioned by entity id and partitions are drained on executor one at a time, so
+ * results of the same entity are emitted in order while different entities are processed in parallel.
+ * Upstream is asked for more items only when results are taken by downstream, so at most
+ * {@code bufferSize} items are held by processor and slow subscriber slows producer down.
+ */
+public class TransitionProcessor<S extends Enum<S>, O>
+        implements Processor<Pair<String, StateMachine.Action>, Pair<String, Optional<O>>> {
+
+    private final class Partition {
+        private final Queue<Pair<String, StateMachine.Action>> queue = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private void offer(Pair<String, StateMachine.Action> item) {
+            if (!queue.offer(item)) {
+                fail(new IllegalStateException("Upstream exceeded requested items"));
+                return;
+            }
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                Pair<String, StateMachine.Action> item;
+                while ((item = queue.poll()) != null) {
+                    if (error != null || cancelled) {
+                        queue.clear();
+                        break;
+                    }
+                    try {
+                        results.add(Pair.of(item.getKey(), transition(item.getKey(), item.getValue())));
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        break;
+                    }
+                    pending.decrementAndGet();
+                    emit();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    private final class Downstream implements Subscription {
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Requested items should be positive: " + n));
+                return;
+            }
+            requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            emit();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            final Subscription upstream = TransitionProcessor.this.upstream;
+            if (upstream != null) {
+                upstream.cancel();
+            }
+            results.clear();
+        }
+    }
+
+    private final StateMachine<S, O> machine;
+    private final Executor executor;
+    private final int bufferSize;
+    private final Partition[] partitions;
+    private final ConcurrentMap<String, O> objects = new ConcurrentHashMap<>();
+    private final Queue<Pair<String, Optional<O>>> results = new ConcurrentLinkedQueue<>();
+    // items received from upstream but not transitioned yet
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger emitting = new AtomicInteger();
+    @Nullable
+    private volatile Subscription upstream;
+    @Nullable
+    private volatile Subscriber<? super Pair<String, Optional<O>>> downstream;
+    @Nullable
+    private volatile Throwable error;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private boolean terminated;
+
+    public TransitionProcessor(StateMachine<S, O> machine, int parallelism, int bufferSize) {
+        this(machine, parallelism, bufferSize, ForkJoinPool.commonPool());
+    }
+
+    public TransitionProcessor(StateMachine<S, O> machine, int parallelism, int bufferSize, Executor executor) {
+        Preconditions.checkArgument(parallelism > 0, "Parallelism should be positive: %s", parallelism);
+        Preconditions.checkArgument(bufferSize > 0, "Buffer size should be positive: %s", bufferSize);
+        machine.checkNotThreadConfined("processor");
+        this.machine = machine;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        machine.freeze();
+        @SuppressWarnings("unchecked")
+        final Partition[] partitions = (Partition[]) new TransitionProcessor<?, ?>.Partition[parallelism];
+        this.partitions = partitions;
+        for (int i = 0; i < parallelism; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Starts owning given object, replacing current object with the same id.
+     * Should not race with items of the same entity.
+     */
+    public void register(O object) {
+        objects.put(machine.getObjectId(object), object);
+    }
+
+    public Optional<O> get(String id) {
+        return Optional.ofNullable(objects.get(id));
+    }
+
+    public Optional<O> remove(String id) {
+        return Optional.ofNullable(objects.remove(id));
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Pair<String, Optional<O>>> subscriber) {
+        Preconditions.checkNotNull(subscriber);
+        if (downstream != null) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Processor supports single subscriber"));
+            return;
+        }
+        downstream = subscriber;
+        subscriber.onSubscribe(new Downstream());
+        emit();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        Preconditions.checkNotNull(subscription);
+        if (upstream != null || cancelled) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        subscription.request(bufferSize);
+    }
+
+    @Override
+    public void onNext(Pair<String, StateMachine.Action> item) {
+        Preconditions.checkNotNull(item);
+        if (done || cancelled) {
+            return;
+        }
+        pending.incrementAndGet();
+        partitions[partition(item.getKey())].offer(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Preconditions.checkNotNull(throwable);
+        error = throwable;
+        done = true;
+        emit();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        emit();
+    }
+
+    public int getParallelism() {
+        return partitions.length;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    private Optional<O> transition(String id, StateMachine.Action action) {
+        final O current = objects.get(id);
+        if (current == null) {
+            return Optional.empty();
+        }
+        final Optional<O> result = machine.transition(current, action);
+        result.ifPresent(object -> objects.put(id, object));
+        return result;
+    }
+
+    private void fail(Throwable throwable) {
+        final Subscription upstream = this.upstream;
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        onError(throwable);
+    }
+
+    private void emit() {
+        if (emitting.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            final Subscriber<? super Pair<String, Optional<O>>> downstream = this.downstream;
+            if (downstream != null && !cancelled && !terminated) {
+                final long demand = requested.get();
+                long emitted = 0;
+                Pair<String, Optional<O>> result;
+                while (emitted != demand && error == null && (result = results.poll()) != null) {
+                    downstream.onNext(result);
+                    emitted++;
+                }
+                if (emitted > 0) {
+                    if (demand != Long.MAX_VALUE) {
+                        requested.addAndGet(-emitted);
+                    }
+                    final Subscription upstream = this.upstream;
+                    if (upstream != null && !done) {
+                        upstream.request(emitted);
+                    }
+                }
+                final Throwable error = this.error;
+                if (error != null) {
+                    terminated = true;
+                    results.clear();
+                    downstream.onError(error);
+                } else if (done && pending.get() == 0 && results.isEmpty()) {
+                    terminated = true;
+                    downstream.onComplete();
+                }
+            }
+            missed = emitting.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private int partition(String entityId) {
+        final int hash = entityId.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitions.length;
+    }
+}
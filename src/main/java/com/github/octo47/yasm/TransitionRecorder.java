@@ -0,0 +1,38 @@
+package com.github.octo47.yasm;
+
+import javax.annotation.Nullable;
+
+/**
+ * Lightweight hook called once per transition with its outcome, set with
+ * {@link StateMachine#setRecorder(TransitionRecorder)}. Unlike {@link TransitionTracer} it doesn't
+ * switch machine to instrumented dispatch, so adaptive and memoized transitions keep
+ * their fast paths, and it gets guard verdicts only as matched candidate and number of rejected
+ * guards rather than per guard feedback. Called in the thread doing transition,
+ * nested transitions (e.g. from transformers) are recorded separately.
+ *
+ * @param <S> machine states
+ * @param <O> state object
+ */
+public interface TransitionRecorder<S extends Enum<S>, O> {
+
+    /**
+     * Matched candidate of a memoized result, no guard was evaluated.
+     */
+    int MEMOIZED = -2;
+
+    /**
+     * @param toState      state of the result or null for NOTFOUND
+     * @param matched      index of accepted candidate in definition order of the (state, action) cell
+     *                     (see {@link StateMachine#candidates(Object, StateMachine.Action)}),
+     *                     -1 if all guards rejected or {@link #MEMOIZED}
+     * @param rejected     number of guards rejected by this call
+     * @param startedNanos {@link System#nanoTime()} before transition
+     */
+    void onTransition(O input, S fromState, @Nullable S toState, StateMachine.Action action,
+                      int matched, int rejected, long startedNanos);
+
+    /**
+     * Guard, transformer or callback failed, error is rethrown to the caller after this call.
+     */
+    void onError(O input, S fromState, StateMachine.Action action, long startedNanos, RuntimeException error);
+}
@@ -0,0 +1,75 @@
+package com.github.octo47.yasm;
+
+/**
+ * Receives transition lifecycle events from {@link StateMachine}.
+ * Machine asks {@link #isEnabled()} once per transition and doesn't build
+ * any events (nor guard feedback) when tracer is disabled, so disabled tracer
+ * costs nothing on the hot path.
+ *
+ * @param <S> machine states
+ * @param <O> state object
+ */
+public interface TransitionTracer<S extends Enum<S>, O> {
+
+    boolean isEnabled();
+
+    /**
+     * @return id correlating all further events of the same transition
+     */
+    long onStart(StateMachine<S, O> machine, O input, S fromState, StateMachine.Action action);
+
+    default void onGuard(StateMachine<S, O> machine, long traceId, O input, S fromState, S toState,
+                         StateMachine.Action action, String message, boolean outcome) {
+    }
+
+    void onComplete(StateMachine<S, O> machine, long traceId, O input, S fromState, S toState,
+                    StateMachine.Action action, O result);
+
+    void onNotFound(StateMachine<S, O> machine, long traceId, O input, S fromState, StateMachine.Action action);
+
+    /**
+     * Guard, transformer or callback failed, error is rethrown to the caller after this call.
+     */
+    default void onError(StateMachine<S, O> machine, long traceId, O input, S fromState, StateMachine.Action action,
+                         RuntimeException error) {
+    }
+
+    /**
+     * Single record of {@link StateMachine#transitionSequence(Object, Iterable)}, steps are not traced.
+     */
+    default void onSequence(StateMachine<S, O> machine, O input, SequenceResult<S, O> result) {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <S extends Enum<S>, O> TransitionTracer<S, O> noop() {
+        return (TransitionTracer<S, O>) Noop.INSTANCE;
+    }
+
+    final class Noop<S extends Enum<S>, O> implements TransitionTracer<S, O> {
+
+        @SuppressWarnings("rawtypes")
+        private static final Noop INSTANCE = new Noop();
+
+        private Noop() {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public long onStart(StateMachine<S, O> machine, O input, S fromState, StateMachine.Action action) {
+            return 0;
+        }
+
+        @Override
+        public void onComplete(StateMachine<S, O> machine, long traceId, O input, S fromState, S toState,
+                               StateMachine.Action action, O result) {
+        }
+
+        @Override
+        public void onNotFound(StateMachine<S, O> machine, long traceId, O input, S fromState, StateMachine.Action action) {
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Hot swappable machine definition. Every published definition is a frozen {@link StateMachine},
+ * so it is immutable, and current version is read through a single volatile reference without
+ * locking. Transition completes on the version it started with, transitions started after
+ * {@link #publish(StateMachine)} use the new version.
+ * <p>
+ * Every version counts started and completed transitions, so traffic draining off retired
+ * versions can be watched with {@link #getVersions()}.
+ */
+public class VersionedStateMachine<S extends Enum<S>, O> {
+
+    public static final class Version<S extends Enum<S>, O> {
+        private final long version;
+        private final StateMachine<S, O> machine;
+        private final LongAdder started = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private volatile boolean retired;
+
+        private Version(long version, StateMachine<S, O> machine) {
+            this.version = version;
+            this.machine = machine;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public StateMachine<S, O> getMachine() {
+            return machine;
+        }
+
+        public long getStarted() {
+            return started.sum();
+        }
+
+        /**
+         * @return transitions started on this version but not completed yet, approximate under traffic
+         */
+        public long getInFlight() {
+            // completed first, so concurrent transition is never seen as completed but not started
+            final long completed = this.completed.sum();
+            return started.sum() - completed;
+        }
+
+        /**
+         * @return true if newer version is published, new transitions don't use retired version
+         */
+        public boolean isRetired() {
+            return retired;
+        }
+
+        @Override
+        public String toString() {
+            return "Version{" +
+                    "version=" + version +
+                    ", machine=" + machine.getMachineName() +
+                    ", started=" + getStarted() +
+                    ", inFlight=" + getInFlight() +
+                    ", retired=" + retired +
+                    '}';
+        }
+    }
+
+    private volatile Version<S, O> current;
+    // current version and retired versions which may still have transitions in flight
+    private final Queue<Version<S, O>> versions = new ConcurrentLinkedQueue<>();
+
+    public VersionedStateMachine(StateMachine<S, O> initial) {
+        this.current = new Version<>(1, initial);
+        initial.freeze();
+        versions.add(current);
+    }
+
+    /**
+     * Freezes given machine and makes it current version, previous version is retired.
+     * Retired versions are released once their transitions drain.
+     */
+    public synchronized Version<S, O> publish(StateMachine<S, O> machine) {
+        Preconditions.checkArgument(machine != current.machine, "Machine %s is already current", machine.getMachineName());
+        machine.freeze();
+        final Version<S, O> previous = current;
+        final Version<S, O> next = new Version<>(previous.version + 1, machine);
+        versions.add(next);
+        current = next;
+        previous.retired = true;
+        pruneDrained();
+        return next;
+    }
+
+    public Version<S, O> getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return current version followed by retired versions with transitions still in flight, oldest first
+     */
+    public List<Version<S, O>> getVersions() {
+        pruneDrained();
+        return ImmutableList.copyOf(versions);
+    }
+
+    public Optional<O> transition(O inputObject, StateMachine.Action action) {
+        return Optional.ofNullable(transitionOrNull(inputObject, action));
+    }
+
+    @Nullable
+    public O transitionOrNull(O inputObject, StateMachine.Action action) {
+        final Version<S, O> version = current;
+        version.started.increment();
+        try {
+            return version.machine.transitionOrNull(inputObject, action);
+        } finally {
+            version.completed.increment();
+        }
+    }
+
+    public Optional<O> loop(O inputObject) {
+        return transition(inputObject, StateMachine.LOOP);
+    }
+
+    private void pruneDrained() {
+        versions.removeIf(version -> version.retired && version.getInFlight() == 0);
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncStateMachineTest {
+
+    /**
+     * Async version of a phone call, dialing checks quota with three guards completed by test.
+     */
+    static class AsyncPhoneCallStateMachine extends AsyncStateMachine<Phone.State, Phone> {
+
+        final List<CompletableFuture<Boolean>> quotas = new CopyOnWriteArrayList<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        AsyncPhoneCallStateMachine() {
+            super("AsyncPhoneCall", Phone::getState, Phone::withState, Phone::getLine);
+
+            fromState(Phone.State.OffHook)
+                    .permitIf(Phone.CallDialed.class, Phone.State.Ringing, this::quota,
+                            (a, phone) -> CompletableFuture.completedFuture(phone.withCallingNumber(a.getNumber())))
+                    .permitIf(Phone.CallDialed.class, Phone.State.Connected, this::quota)
+                    .permitIf(Phone.CallDialed.class, Phone.State.OffHook, this::quota,
+                            (a, phone) -> CompletableFuture.completedFuture(phone.withLeftMessage("no quota")));
+
+            fromState(Phone.State.Ringing)
+                    .permit(Phone.CallConnected.class, Phone.State.Connected)
+                    .permit(Phone.HungUp.class, Phone.State.OffHook,
+                            (hungUp, phone) -> CompletableFuture.completedFuture(phone.withCallingNumber(null)));
+
+            fromState(Phone.State.OffHook)
+                    .permit(Phone.LeftMessage.class, Phone.State.OffHook,
+                            (leftMessage, phone) -> CompletableFuture.supplyAsync(
+                                    () -> phone.withLeftMessage(phone.getLeftMessage() + leftMessage.getLeftMessage())));
+        }
+
+        private CompletionStage<Boolean> quota(Phone phone) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            final CompletableFuture<Boolean> quota = new CompletableFuture<>();
+            quotas.add(quota);
+            return quota.whenComplete((accepted, error) -> inFlight.decrementAndGet());
+        }
+    }
+
+    private static final Phone OFF_HOOK = Phone.of("line", Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+    @Test
+    public void testFirstMatchInOrder() throws Exception {
+
+        final AsyncPhoneCallStateMachine stateMachine = new AsyncPhoneCallStateMachine();
+        stateMachine.setGuardConcurrency(3);
+
+        final CompletableFuture<Optional<Phone>> ringing =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        Assert.assertEquals(3, stateMachine.quotas.size());
+        // later candidate accepts first, but earlier ones are not decided yet
+        stateMachine.quotas.get(2).complete(true);
+        stateMachine.quotas.get(1).complete(true);
+        Assert.assertFalse(ringing.isDone());
+        stateMachine.quotas.get(0).complete(false);
+        Assert.assertEquals(Phone.State.Connected, ringing.join().orElseThrow(AssertionError::new).getState());
+
+        final CompletableFuture<Optional<Phone>> rejected =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        stateMachine.quotas.subList(3, 6).forEach(quota -> quota.complete(false));
+        Assert.assertFalse(rejected.join().isPresent());
+
+        Assert.assertFalse(stateMachine.transition(OFF_HOOK, new Phone.CallConnected())
+                .toCompletableFuture().join().isPresent());
+    }
+
+    @Test
+    public void testGuardConcurrency() throws Exception {
+
+        final AsyncPhoneCallStateMachine stateMachine = new AsyncPhoneCallStateMachine();
+        stateMachine.setGuardConcurrency(2);
+
+        final CompletableFuture<Optional<Phone>> ringing =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        Assert.assertEquals(2, stateMachine.quotas.size());
+        // window doesn't move until the first guard is decided
+        stateMachine.quotas.get(1).complete(false);
+        Assert.assertEquals(2, stateMachine.quotas.size());
+        stateMachine.quotas.get(0).complete(false);
+        Assert.assertEquals(3, stateMachine.quotas.size());
+        stateMachine.quotas.get(2).complete(true);
+        final Phone phone = ringing.join().orElseThrow(AssertionError::new);
+        Assert.assertEquals(Phone.State.OffHook, phone.getState());
+        Assert.assertEquals("no quota", phone.getLeftMessage());
+        Assert.assertEquals(2, stateMachine.maxInFlight.get());
+
+        final CompletableFuture<Optional<Phone>> failed =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        stateMachine.quotas.get(3).completeExceptionally(new IllegalStateException("quota service"));
+        try {
+            failed.join();
+            Assert.fail("Expected guard failure");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testGuardFailureInOrder() throws Exception {
+
+        final AsyncPhoneCallStateMachine stateMachine = new AsyncPhoneCallStateMachine();
+        stateMachine.setGuardConcurrency(3);
+
+        // later guard fails, but earlier one accepts
+        final CompletableFuture<Optional<Phone>> ringing =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        stateMachine.quotas.get(2).completeExceptionally(new IllegalStateException("third guard down"));
+        Assert.assertFalse(ringing.isDone());
+        stateMachine.quotas.get(0).complete(true);
+        Assert.assertEquals(Phone.State.Ringing, ringing.join().orElseThrow(AssertionError::new).getState());
+
+        // failure is surfaced once all guards before it rejected
+        final CompletableFuture<Optional<Phone>> failed =
+                stateMachine.transition(OFF_HOOK, new Phone.CallDialed("333")).toCompletableFuture();
+        stateMachine.quotas.get(4).completeExceptionally(new IllegalStateException("second guard down"));
+        stateMachine.quotas.get(5).complete(true);
+        Assert.assertFalse(failed.isDone());
+        stateMachine.quotas.get(3).complete(false);
+        try {
+            failed.join();
+            Assert.fail("Expected guard failure");
+        } catch (CompletionException e) {
+            Assert.assertEquals("second guard down", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testNestedStatesAndSupertypes() throws Exception {
+
+        final AsyncStateMachine<Phone.State, Phone> stateMachine = new AsyncStateMachine<Phone.State, Phone>(
+                "AsyncNested", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.Ringing)
+                        .subStateOf(Phone.State.OffHook);
+                fromState(Phone.State.OffHook)
+                        .onExit(phone -> phone.withLeftMessage("left"))
+                        .permit(StateMachine.Action.class, Phone.State.Connected);
+            }
+        };
+        final Phone ringing = Phone.of("line", Phone.State.Ringing, null, null, null, Duration.ZERO);
+        // Ringing inherits transition of OffHook registered for any action and exits both states
+        final Phone connected = stateMachine.transition(ringing, new Phone.HungUp())
+                .toCompletableFuture().join().orElseThrow(AssertionError::new);
+        Assert.assertEquals(Phone.State.Connected, connected.getState());
+        Assert.assertEquals("left", connected.getLeftMessage());
+        Assert.assertTrue(stateMachine.isFrozen());
+    }
+
+    @Test
+    public void testSerializedPerObject() throws Exception {
+
+        final AsyncPhoneCallStateMachine stateMachine = new AsyncPhoneCallStateMachine();
+        final AsyncEntityRuntime<Phone.State, Phone> runtime = new AsyncEntityRuntime<>(stateMachine);
+        runtime.register(OFF_HOOK.withLeftMessage("")).toCompletableFuture().join();
+
+        // every transformer completes in another thread, yet actions apply in submission order
+        final int messages = 50;
+        CompletionStage<Optional<Phone>> last = null;
+        for (int i = 0; i < messages; i++) {
+            last = runtime.submit("line", new Phone.LeftMessage(i % 10 + ""));
+        }
+        last.toCompletableFuture().join();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < messages; i++) {
+            expected.append(i % 10);
+        }
+        final Phone phone = runtime.get("line").toCompletableFuture().join().orElseThrow(AssertionError::new);
+        Assert.assertEquals(expected.toString(), phone.getLeftMessage());
+        Assert.assertEquals(Phone.State.OffHook, phone.getState());
+
+        // not found keeps current object
+        Assert.assertFalse(runtime.submit("line", new Phone.CallConnected()).toCompletableFuture().join().isPresent());
+        Assert.assertEquals(phone, runtime.get("line").toCompletableFuture().join().orElseThrow(AssertionError::new));
+
+        try {
+            runtime.submit("nobody", new Phone.HungUp()).toCompletableFuture().join();
+            Assert.fail("Expected unknown object");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FlightRecorderTest {
+
+    @Test
+    public void testRecordsAndDumpOnError() {
+
+        final AtomicReference<List<FlightRecorder.Record<Phone.State>>> dumped = new AtomicReference<>();
+        final FlightRecorder<Phone.State, Phone> recorder =
+                new FlightRecorder<>(1, 4, phone -> phone.getLine().hashCode(), dumped::set);
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Recorded", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permitIf(Phone.CallDialed.class, Phone.State.Connected,
+                                  withMessage("emergency", phone -> "911".equals(phone.getCallingNumber())))
+                        .permitIf(Phone.CallDialed.class, Phone.State.Ringing,
+                                  withMessage("has number", phone -> phone.getCallingNumber() != null));
+                fromState(Phone.State.Ringing)
+                        .permit(Phone.HungUp.class, Phone.State.OffHook, (hungUp, phone) -> {
+                            throw new IllegalStateException("line is broken");
+                        });
+            }
+        };
+        machine.setRecorder(recorder);
+        // recorder keeps fast paths, memoized transitions are recorded too
+        final TransitionCache<Phone> cache = machine.enableMemoization(100);
+        Assert.assertTrue(recorder.dump().isEmpty());
+
+        final Phone phone = Phone.of("line", Phone.State.OffHook, "333", null, null, Duration.ZERO);
+        final Phone ringing = machine.transitionOrNull(phone, new Phone.CallDialed("333"));
+        Assert.assertNull(machine.transitionOrNull(ringing, new Phone.CallDialed("333")));
+
+        List<FlightRecorder.Record<Phone.State>> records = recorder.dump();
+        Assert.assertEquals(2, records.size());
+        final FlightRecorder.Record<Phone.State> dialed = records.get(0);
+        Assert.assertEquals(FlightRecorder.Outcome.COMPLETE, dialed.getOutcome());
+        Assert.assertEquals(Phone.State.OffHook, dialed.getFrom());
+        Assert.assertEquals(Phone.State.Ringing, dialed.getTo());
+        Assert.assertEquals(Phone.CallDialed.class, dialed.getActionClass());
+        Assert.assertEquals("line".hashCode(), dialed.getEntityHash());
+        // emergency guard rejected before the second candidate matched
+        Assert.assertEquals(1, dialed.getMatched());
+        Assert.assertEquals(1, dialed.getRejected());
+        Assert.assertEquals(FlightRecorder.Outcome.NOTFOUND, records.get(1).getOutcome());
+        Assert.assertNull(records.get(1).getTo());
+        Assert.assertEquals(-1, records.get(1).getMatched());
+        Assert.assertEquals(0, records.get(1).getRejected());
+
+        try {
+            machine.transitionOrNull(ringing, new Phone.HungUp());
+            Assert.fail("Expected callback failure");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("line is broken", e.getMessage());
+        }
+        Assert.assertEquals(3, dumped.get().size());
+        Assert.assertEquals(FlightRecorder.Outcome.ERROR, dumped.get().get(2).getOutcome());
+
+        // ring keeps last records only
+        final Phone.CallDialed dial = new Phone.CallDialed("333");
+        for (int i = 0; i < 10; i++) {
+            machine.transitionOrNull(phone, dial);
+        }
+        Assert.assertEquals(9, cache.stats().hitCount());
+        records = recorder.dump();
+        Assert.assertEquals(4, records.size());
+        final List<Long> sequences = new ArrayList<>();
+        records.forEach(record -> sequences.add(record.getSequence()));
+        Assert.assertTrue(sequences.toString(), sequences.containsAll(Arrays.asList(9L, 10L, 11L, 12L)));
+        records.forEach(record -> Assert.assertEquals(TransitionRecorder.MEMOIZED, record.getMatched()));
+    }
+
+    @Test
+    public void testIdentityEntityHashByDefault() {
+        final FlightRecorder<Phone.State, Phone> recorder = new FlightRecorder<>(1, 4);
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Recorded", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(Phone.CallDialed.class, Phone.State.Ringing);
+            }
+        };
+        machine.setRecorder(recorder);
+        final Phone phone = Phone.of("line", Phone.State.OffHook, "333", null, null, Duration.ZERO);
+        machine.transitionOrNull(phone, new Phone.CallDialed("333"));
+
+        final FlightRecorder.Record<Phone.State> record = recorder.dump().get(0);
+        Assert.assertEquals(System.identityHashCode(phone), record.getEntityHash());
+        Assert.assertEquals(0, record.getMatched());
+        Assert.assertEquals(0, record.getRejected());
+    }
+}
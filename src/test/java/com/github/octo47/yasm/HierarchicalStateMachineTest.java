@@ -0,0 +1,122 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HierarchicalStateMachineTest {
+
+    enum Call {
+        Idle, Active, Dialing, Connected, Talking, OnHold
+    }
+
+    static class Dial extends StateMachine.SimpleAction {
+    }
+
+    static class Answer extends StateMachine.SimpleAction {
+    }
+
+    static class Hold extends StateMachine.SimpleAction {
+    }
+
+    static class Resume extends StateMachine.SimpleAction {
+    }
+
+    static class HangUp extends StateMachine.SimpleAction {
+    }
+
+    /**
+     * Idle
+     * Active
+     * +- Dialing
+     * +- Connected
+     *    +- Talking
+     *    +- OnHold
+     */
+    private static final class CallMachine extends StateMachine<Call, Call> {
+
+        private final List<String> events = new ArrayList<>();
+
+        private CallMachine() {
+            super("Call", call -> call, (call, state) -> state, Enum::name);
+
+            for (Call state : Call.values()) {
+                fromState(state)
+                        .onEntry(call -> log("enter " + state, call))
+                        .onExit(call -> log("exit " + state, call));
+            }
+            fromState(Call.Idle)
+                    .permit(Dial.class, Call.Dialing);
+            fromState(Call.Active)
+                    .permit(HangUp.class, Call.Idle)
+                    .permitAfter(Duration.ofHours(1), Call.Idle);
+            fromState(Call.Dialing)
+                    .subStateOf(Call.Active)
+                    .permit(Answer.class, Call.Talking);
+            fromState(Call.Connected)
+                    .subStateOf(Call.Active)
+                    .permit(Hold.class, Call.OnHold);
+            fromState(Call.Talking)
+                    .subStateOf(Call.Connected)
+                    // overrides inherited transition
+                    .permit(Hold.class, Call.OnHold, (hold, call) -> log("hold", call));
+            fromState(Call.OnHold)
+                    .subStateOf(Call.Connected)
+                    .permit(Resume.class, Call.Talking)
+                    .permit(Hold.class, Call.Connected);
+        }
+
+        private Call log(String event, Call call) {
+            events.add(event);
+            return call;
+        }
+
+        private List<String> drain() {
+            final List<String> drained = new ArrayList<>(events);
+            events.clear();
+            return drained;
+        }
+    }
+
+    @Test
+    public void testInheritedTransitions() {
+
+        final CallMachine machine = new CallMachine();
+        Assert.assertEquals(Call.Dialing, machine.transitionOrNull(Call.Idle, new Dial()));
+        Assert.assertEquals(Arrays.asList("exit Idle", "enter Active", "enter Dialing"), machine.drain());
+
+        Assert.assertEquals(Call.Talking, machine.transitionOrNull(Call.Dialing, new Answer()));
+        Assert.assertEquals(Arrays.asList("exit Dialing", "enter Connected", "enter Talking"), machine.drain());
+
+        // own transition of Talking wins over inherited one
+        Assert.assertEquals(Call.OnHold, machine.transitionOrNull(Call.Talking, new Hold()));
+        Assert.assertEquals(Arrays.asList("exit Talking", "enter OnHold", "hold"), machine.drain());
+
+        // transition inherited from Active, two levels up
+        Assert.assertEquals(Call.Idle, machine.transitionOrNull(Call.OnHold, new HangUp()));
+        Assert.assertEquals(Arrays.asList("exit OnHold", "exit Connected", "exit Active", "enter Idle"), machine.drain());
+
+        // transition to ancestor leaves and re-enters it
+        Assert.assertEquals(Call.Connected, machine.transitionOrNull(Call.OnHold, new Hold()));
+        Assert.assertEquals(Arrays.asList("exit OnHold", "exit Connected", "enter Connected"), machine.drain());
+
+        Assert.assertNull(machine.transitionOrNull(Call.Idle, new HangUp()));
+        Assert.assertEquals(Duration.ofHours(1), machine.getTimeout(Call.Talking).orElseThrow(AssertionError::new));
+        Assert.assertFalse(machine.getTimeout(Call.Idle).isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCyclicHierarchy() {
+
+        new StateMachine<Call, Call>("Cyclic", call -> call, (call, state) -> state, Enum::name) {
+            {
+                fromState(Call.Dialing).subStateOf(Call.Active);
+                fromState(Call.Active).subStateOf(Call.Dialing);
+            }
+        };
+    }
+}
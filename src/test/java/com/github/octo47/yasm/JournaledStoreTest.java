@@ -0,0 +1,81 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JournaledStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testJournalRollsSegments() throws IOException {
+
+        final Path directory = folder.getRoot().toPath();
+        final List<Long> positions = new ArrayList<>();
+        try (TransitionJournal journal = new TransitionJournal(directory, 256)) {
+            for (int i = 0; i < 100; i++) {
+                positions.add(journal.append("line-" + i, i, new byte[i % 7]));
+            }
+            journal.sync();
+        }
+        try (TransitionJournal journal = new TransitionJournal(directory, 256)) {
+            final List<Long> read = new ArrayList<>();
+            journal.read(0, (position, entityId, typeId, payload) -> {
+                Assert.assertEquals("line-" + typeId, entityId);
+                Assert.assertEquals(typeId % 7, payload.length);
+                read.add(position);
+            });
+            Assert.assertEquals(positions, read);
+            // appends continue after recovered records
+            Assert.assertTrue(journal.append("line", 0, new byte[0]) > positions.get(positions.size() - 1));
+        }
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+
+        final Path directory = folder.getRoot().toPath();
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        try (JournaledStore<Phone.State, Phone> store = open(stateMachine, directory)) {
+            for (int i = 0; i < 10; i++) {
+                store.put(Phone.of("line-" + i, Phone.State.OffHook, null, null, null, Duration.ZERO));
+                store.transition("line-" + i, new Phone.CallDialed("number-" + i));
+            }
+            store.snapshot();
+            for (int i = 0; i < 10; i += 2) {
+                store.transition("line-" + i, new Phone.CallConnected());
+                store.transition("line-" + i, new Phone.LeftMessage("message-" + i));
+            }
+            store.remove("line-9");
+            // no transition, shouldn't be journaled
+            Assert.assertFalse(store.transition("line-1", new Phone.LeftMessage("none")).isPresent());
+        }
+        try (JournaledStore<Phone.State, Phone> store = open(stateMachine, directory)) {
+            Assert.assertEquals(9, store.size());
+            for (int i = 0; i < 9; i++) {
+                final Phone phone = store.get("line-" + i).orElseThrow(AssertionError::new);
+                if (i % 2 == 0) {
+                    Assert.assertEquals(Phone.State.OffHook, phone.getState());
+                    Assert.assertEquals("message-" + i, phone.getLeftMessage());
+                } else {
+                    Assert.assertEquals(Phone.State.Ringing, phone.getState());
+                    Assert.assertEquals("number-" + i, phone.getCallingNumber());
+                }
+            }
+        }
+    }
+
+    private static JournaledStore<Phone.State, Phone> open(PhoneCallStateMachine stateMachine, Path directory) throws IOException {
+        return new JournaledStore<>(stateMachine, new TransitionJournal(directory, 1024), PhoneCodecs.ACTIONS, PhoneCodecs.PHONES);
+    }
+}
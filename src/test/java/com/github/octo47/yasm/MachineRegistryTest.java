@@ -0,0 +1,127 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MachineRegistryTest {
+
+    @Test
+    public void testTenantsShareTemplate() throws Exception {
+
+        final TestClock clock = new TestClock();
+        final AtomicInteger loaded = new AtomicInteger();
+        // tenant-N limits calls to N minutes
+        final MachineRegistry<Phone.State, Phone, Duration> registry = new MachineRegistry<>(
+                maxCall -> new PhoneCallStateMachine(clock, maxCall),
+                id -> {
+                    loaded.incrementAndGet();
+                    return Duration.ofMinutes(Integer.parseInt(id.substring("tenant-".length())));
+                },
+                2, Duration.ofHours(1));
+        Assert.assertTrue(registry.getTemplate().isFrozen());
+        Assert.assertEquals(0, registry.size());
+
+        final MachineRegistry.Tenant<Phone.State, Phone, Duration> shortCalls = registry.tenant("tenant-1");
+        final MachineRegistry.Tenant<Phone.State, Phone, Duration> longCalls = registry.tenant("tenant-10");
+        Assert.assertSame(shortCalls, registry.tenant("tenant-1"));
+        Assert.assertEquals(2, loaded.get());
+        Assert.assertEquals(Duration.ofMinutes(10), longCalls.getParameters());
+
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone talking = shortCalls.transition(offHook, new Phone.CallDialed("1"))
+                .flatMap(ringing -> shortCalls.transition(ringing, new Phone.CallConnected()))
+                .orElseThrow(AssertionError::new);
+        clock.increment(Duration.ofMinutes(5));
+        Assert.assertEquals(Phone.State.OffHook, shortCalls.loop(talking).map(Phone::getState).orElse(null));
+        Assert.assertFalse(longCalls.loop(talking).isPresent());
+
+        // template can't be used without tenant parameters
+        try {
+            registry.getTemplate().loop(talking);
+            Assert.fail("Expected unbound parameters");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("No tenant bound"));
+        }
+
+        // tenants are bounded, evicted tenant is reloaded lazily
+        final MachineRegistry.Tenant<Phone.State, Phone, Duration> mediumCalls = registry.tenant("tenant-3");
+        Assert.assertTrue(registry.size() <= 2);
+        registry.evict("tenant-3");
+        Assert.assertNotSame(mediumCalls, registry.tenant("tenant-3"));
+        Assert.assertEquals(4, loaded.get());
+    }
+
+    @Test
+    public void testTemplateConfinedToCallingThread() {
+
+        final TestClock clock = new TestClock();
+        final MachineRegistry<Phone.State, Phone, Duration> registry = new MachineRegistry<>(
+                maxCall -> new PhoneCallStateMachine(clock, maxCall), id -> Duration.ofMinutes(1), 2, Duration.ofHours(1));
+        final StateMachine<Phone.State, Phone> template = registry.getTemplate();
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        // tenant binding doesn't cross threads, so template can't be used by parallel components
+        try {
+            template.transitionAll(Collections.singletonList(offHook), new Phone.CallDialed("1"));
+            Assert.fail("Expected thread confined template");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("transitionAll is not supported"));
+        }
+        try {
+            new StateMachineRuntime<>(template, 1).close();
+            Assert.fail("Expected thread confined template");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("runtime is not supported"));
+        }
+        try {
+            new TransitionProcessor<>(template, 1, 16);
+            Assert.fail("Expected thread confined template");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("processor is not supported"));
+        }
+        try {
+            new TimeoutScheduler<>(template, clock);
+            Assert.fail("Expected thread confined template");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("scheduler is not supported"));
+        }
+    }
+
+    @Test
+    public void testMemoizedTemplateRejected() {
+
+        final TestClock clock = new TestClock();
+        try {
+            new MachineRegistry<Phone.State, Phone, Duration>(
+                    maxCall -> {
+                        final PhoneCallStateMachine machine = new PhoneCallStateMachine(clock, maxCall);
+                        machine.enableMemoization(100);
+                        return machine;
+                    },
+                    id -> Duration.ofMinutes(1), 2, Duration.ofHours(1));
+            Assert.fail("Expected memoized template to be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("should not memoize"));
+        }
+    }
+
+    @Test
+    public void testMissingParameters() {
+
+        final TestClock clock = new TestClock();
+        final MachineRegistry<Phone.State, Phone, Duration> registry = new MachineRegistry<>(
+                maxCall -> new PhoneCallStateMachine(clock, maxCall), id -> null, 2, Duration.ofHours(1));
+        try {
+            registry.tenant("unknown");
+            Assert.fail("Expected missing parameters");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Failed to load tenant unknown", e.getMessage());
+            Assert.assertEquals("No parameters loaded for tenant unknown", e.getCause().getMessage());
+        }
+        Assert.assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.octo47.yasm;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * Same machine as {@link PhoneCallStateMachine}, but entry and exit transformers work
+ * on {@link Phone.Builder} in mutable mode.
+ */
+public class MutablePhoneCallStateMachine extends StateMachine<Phone.State, Phone> {
+
+    MutablePhoneCallStateMachine(final Clock clock, final Duration maxCall) {
+        super("MutablePhoneCall", Phone::getState, Phone::withState, Phone::getLine);
+
+        mutableMode(Phone::toBuilder, Phone.Builder::build)
+                .onEntry(Phone.State.OffHook, phone -> phone.callingNumber(null).accountAccumulated(clock.instant()))
+                .onEntry(Phone.State.Connected, phone -> {
+                    Preconditions.checkArgument(phone.getStarted() == null, "No call should be active");
+                    phone.started(clock.instant());
+                })
+                .onExit(Phone.State.Connected, phone -> {
+                    Preconditions.checkArgument(phone.getStarted() != null, "No call should be active");
+                    phone.accountAccumulated(clock.instant());
+                });
+
+        fromState(Phone.State.OffHook)
+                .permit(Phone.CallDialed.class, Phone.State.Ringing, (a, phone) -> phone.withCallingNumber(a.getNumber()));
+
+        fromState(Phone.State.Ringing)
+                .permit(Phone.HungUp.class, Phone.State.OffHook, (hungUp, phone) -> phone.withCallingNumber(null))
+                .permit(Phone.CallConnected.class, Phone.State.Connected)
+                .permitAfter(PhoneCallStateMachine.RING_TIMEOUT, Phone.State.OffHook, (timeout, phone) -> phone.withCallingNumber(null));
+
+        fromState(Phone.State.Connected)
+                .permitIf(AnyAction.class, Phone.State.OffHook, (phone, feedback) -> phone.getStarted() != null
+                        && Duration.between(phone.getStarted(), clock.instant()).compareTo(maxCall) > 0)
+                .permit(Phone.LeftMessage.class, Phone.State.OffHook, (leftMessage, phone) -> phone.withLeftMessage(leftMessage.getLeftMessage()))
+                .permit(Phone.HungUp.class, Phone.State.OffHook);
+    }
+}
@@ -57,6 +57,7 @@ final class Phone {
     static class HungUp extends StateMachine.SimpleAction {
     }
 
+    private final String line;
     private final State state;
     @Nullable
     private final String callingNumber;
@@ -66,7 +67,8 @@ final class Phone {
     private final Instant started;
     private final Duration accumulated;
 
-    private Phone(State state, @Nullable String callingNumber, @Nullable String leftMessage, @Nullable Instant started, Duration accumulated) {
+    private Phone(String line, State state, @Nullable String callingNumber, @Nullable String leftMessage, @Nullable Instant started, Duration accumulated) {
+        this.line = line;
         this.state = state;
         this.callingNumber = callingNumber;
         this.leftMessage = leftMessage;
@@ -75,23 +77,23 @@ final class Phone {
     }
 
     Phone withState(State state) {
-        return of(state, getCallingNumber(), getLeftMessage(), getStarted(), getAccumulated());
+        return of(getLine(), state, getCallingNumber(), getLeftMessage(), getStarted(), getAccumulated());
     }
 
     Phone withCallingNumber(@Nullable String callingNumber) {
-        return of(getState(), callingNumber, getLeftMessage(), getStarted(), getAccumulated());
+        return of(getLine(), getState(), callingNumber, getLeftMessage(), getStarted(), getAccumulated());
     }
 
     Phone withLeftMessage(String leftMessage) {
-        return of(getState(), getCallingNumber(), leftMessage, getStarted(), getAccumulated());
+        return of(getLine(), getState(), getCallingNumber(), leftMessage, getStarted(), getAccumulated());
     }
 
     Phone withStarted(@Nullable Instant started) {
-        return of(getState(), getCallingNumber(), getLeftMessage(), started, getAccumulated());
+        return of(getLine(), getState(), getCallingNumber(), getLeftMessage(), started, getAccumulated());
     }
 
     Phone withAccumulated(Duration accumulated) {
-        return of(getState(), getCallingNumber(), getLeftMessage(), getStarted(), accumulated);
+        return of(getLine(), getState(), getCallingNumber(), getLeftMessage(), getStarted(), accumulated);
     }
 
     Phone accountAccumulated(Instant now) {
@@ -103,7 +105,19 @@ final class Phone {
     }
 
     static Phone of(State state, @Nullable String callingNumber, @Nullable String leftMessage, @Nullable Instant started, Duration accumulated) {
-        return new Phone(state, callingNumber, leftMessage, started, accumulated);
+        return of("line", state, callingNumber, leftMessage, started, accumulated);
+    }
+
+    static Phone of(String line, State state, @Nullable String callingNumber, @Nullable String leftMessage, @Nullable Instant started, Duration accumulated) {
+        return new Phone(line, state, callingNumber, leftMessage, started, accumulated);
+    }
+
+    Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    String getLine() {
+        return line;
     }
 
     State getState() {
@@ -134,7 +148,8 @@ final class Phone {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Phone phone = (Phone) o;
-        return accumulated == phone.accumulated &&
+        return accumulated.equals(phone.accumulated) &&
+                line.equals(phone.line) &&
                 state == phone.state &&
                 Objects.equals(callingNumber, phone.callingNumber) &&
                 Objects.equals(leftMessage, phone.leftMessage) &&
@@ -143,13 +158,14 @@ final class Phone {
 
     @Override
     public int hashCode() {
-        return Objects.hash(state, callingNumber, leftMessage, started, accumulated);
+        return Objects.hash(line, state, callingNumber, leftMessage, started, accumulated);
     }
 
     @Override
     public String toString() {
         return "Phone{" +
-                "state=" + state +
+                "line='" + line + '\'' +
+                ", state=" + state +
                 ", callingNumber='" + callingNumber + '\'' +
                 ", leftMessage='" + leftMessage + '\'' +
                 ", started=" + started +
@@ -157,5 +173,48 @@ final class Phone {
                 '}';
     }
 
-}
+    static final class Builder {
+        private final String line;
+        private State state;
+        private String callingNumber;
+        private String leftMessage;
+        private Instant started;
+        private Duration accumulated;
+
+        private Builder(Phone phone) {
+            this.line = phone.line;
+            this.state = phone.state;
+            this.callingNumber = phone.callingNumber;
+            this.leftMessage = phone.leftMessage;
+            this.started = phone.started;
+            this.accumulated = phone.accumulated;
+        }
+
+        Builder callingNumber(@Nullable String callingNumber) {
+            this.callingNumber = callingNumber;
+            return this;
+        }
 
+        Builder started(@Nullable Instant started) {
+            this.started = started;
+            return this;
+        }
+
+        @Nullable
+        Instant getStarted() {
+            return started;
+        }
+
+        Builder accountAccumulated(Instant now) {
+            if (started != null) {
+                accumulated = Duration.between(started, now);
+                started = null;
+            }
+            return this;
+        }
+
+        Phone build(State state) {
+            return of(line, state, callingNumber, leftMessage, started, accumulated);
+        }
+    }
+}
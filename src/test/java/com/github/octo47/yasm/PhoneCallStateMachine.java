@@ -4,25 +4,35 @@ import com.google.common.base.Preconditions;
 
 import java.time.Clock;
 import java.time.Duration;
+import java.util.function.Supplier;
 
 public class PhoneCallStateMachine extends StateMachine<Phone.State, Phone> {
 
+    static final Duration RING_TIMEOUT = Duration.ofMinutes(1);
+
     public PhoneCallStateMachine(final Clock clock) {
         this(clock, Duration.ofMillis(Long.MAX_VALUE));
     }
 
     PhoneCallStateMachine(final Clock clock, final Duration maxCall) {
-        super("PhoneCall", Phone::getState, Phone::withState, Phone::toString);
+        this(clock, () -> maxCall);
+    }
+
+    PhoneCallStateMachine(final Clock clock, final Supplier<Duration> maxCall) {
+        super("PhoneCall", Phone::getState, Phone::withState, Phone::getLine);
 
         fromState(Phone.State.OffHook)
+                .impure()
                 .onEntry(phone -> phone.withCallingNumber(null).accountAccumulated(clock.instant()))
                 .permit(Phone.CallDialed.class, Phone.State.Ringing, (a, phone) -> phone.withCallingNumber(a.getNumber()));
 
         fromState(Phone.State.Ringing)
                 .permit(Phone.HungUp.class, Phone.State.OffHook, (hungUp, phone) -> phone.withCallingNumber(null))
-                .permit(Phone.CallConnected.class, Phone.State.Connected);
+                .permit(Phone.CallConnected.class, Phone.State.Connected)
+                .permitAfter(RING_TIMEOUT, Phone.State.OffHook, (timeout, phone) -> phone.withCallingNumber(null));
 
         fromState(Phone.State.Connected)
+                .impure()
                 .onEntry(phone -> {
                     Preconditions.checkArgument(phone.getStarted() == null, "No call should be active");
                     return phone.withStarted(clock.instant());
@@ -36,8 +46,8 @@ public class PhoneCallStateMachine extends StateMachine<Phone.State, Phone> {
                 .permit(Phone.HungUp.class, Phone.State.OffHook);
     }
 
-    private Guard<Phone> isCallTooLong(Clock clock, Duration maxCall) {
-        return (phone, feedback) -> phone.getStarted() != null
-                && Duration.between(phone.getStarted(), clock.instant()).compareTo(maxCall) > 0;
+    private Guard<Phone> isCallTooLong(Clock clock, Supplier<Duration> maxCall) {
+        return impure((phone, feedback) -> phone.getStarted() != null
+                && Duration.between(phone.getStarted(), clock.instant()).compareTo(maxCall.get()) > 0);
     }
 }
@@ -0,0 +1,107 @@
+package com.github.octo47.yasm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+
+import javax.annotation.Nullable;
+
+final class PhoneCodecs {
+
+    static final ActionCodec ACTIONS = new ActionCodec() {
+        @Override
+        public int typeId(StateMachine.Action action) {
+            if (action instanceof Phone.CallDialed) {
+                return 1;
+            } else if (action instanceof Phone.CallConnected) {
+                return 2;
+            } else if (action instanceof Phone.LeftMessage) {
+                return 3;
+            } else if (action instanceof Phone.HungUp) {
+                return 4;
+            }
+            throw new IllegalArgumentException("Unsupported action " + action);
+        }
+
+        @Override
+        public byte[] encode(StateMachine.Action action) {
+            if (action instanceof Phone.CallDialed) {
+                return ((Phone.CallDialed) action).getNumber().getBytes(StandardCharsets.UTF_8);
+            } else if (action instanceof Phone.LeftMessage) {
+                return ((Phone.LeftMessage) action).getLeftMessage().getBytes(StandardCharsets.UTF_8);
+            }
+            return new byte[0];
+        }
+
+        @Override
+        public StateMachine.Action decode(int typeId, byte[] payload) {
+            switch (typeId) {
+                case 1:
+                    return new Phone.CallDialed(new String(payload, StandardCharsets.UTF_8));
+                case 2:
+                    return new Phone.CallConnected();
+                case 3:
+                    return new Phone.LeftMessage(new String(payload, StandardCharsets.UTF_8));
+                case 4:
+                    return new Phone.HungUp();
+                default:
+                    throw new IllegalArgumentException("Unsupported action type " + typeId);
+            }
+        }
+    };
+
+    static final ObjectCodec<Phone> PHONES = new ObjectCodec<Phone>() {
+        @Override
+        public byte[] encode(Phone phone) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeUTF(phone.getLine());
+                out.writeUTF(phone.getState().name());
+                writeNullable(out, phone.getCallingNumber());
+                writeNullable(out, phone.getLeftMessage());
+                out.writeLong(phone.getStarted() == null ? Long.MIN_VALUE : phone.getStarted().toEpochMilli());
+                out.writeLong(phone.getAccumulated().toMillis());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Phone decode(byte[] bytes) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                final String line = in.readUTF();
+                final Phone.State state = Phone.State.valueOf(in.readUTF());
+                final String callingNumber = readNullable(in);
+                final String leftMessage = readNullable(in);
+                final long started = in.readLong();
+                final Duration accumulated = Duration.ofMillis(in.readLong());
+                return Phone.of(line, state, callingNumber, leftMessage,
+                                started == Long.MIN_VALUE ? null : Instant.ofEpochMilli(started), accumulated);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private static void writeNullable(DataOutputStream out, @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    @Nullable
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private PhoneCodecs() {
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PrimitiveStateStoreTest {
+
+    private static final int CALLING_NUMBER = 0;
+    private static final int CALLS = 1;
+
+    static class Dialed implements StateMachine.Action {
+        private final long number;
+
+        Dialed(long number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Phone call over primitive entities, calling number and number of calls are entity fields.
+     */
+    static class PrimitivePhoneCallStateMachine extends StateMachine<Phone.State, PrimitiveStateStore.Entity<Phone.State>> {
+
+        PrimitivePhoneCallStateMachine() {
+            super("PrimitivePhoneCall", PrimitiveStateStore.Entity::getState, PrimitiveStateStore.Entity::withState,
+                    PrimitiveStateStore.Entity::getKey);
+
+            fromState(Phone.State.OffHook)
+                    .permitIf(Dialed.class, Phone.State.Ringing, (phone, feedback) -> phone.getLong(CALLS) < 2,
+                            (dialed, phone) -> phone.withLong(CALLING_NUMBER, dialed.number));
+
+            fromState(Phone.State.Ringing)
+                    .permit(Phone.HungUp.class, Phone.State.OffHook, (hungUp, phone) -> phone.withLong(CALLING_NUMBER, 0))
+                    .permit(Phone.CallConnected.class, Phone.State.Connected);
+
+            fromState(Phone.State.Connected)
+                    .onExit(phone -> phone.withLong(CALLS, phone.getLong(CALLS) + 1))
+                    .permit(Phone.HungUp.class, Phone.State.OffHook);
+        }
+    }
+
+    @Test
+    public void testTransitionsAndCensus() throws Exception {
+
+        final PrimitivePhoneCallStateMachine stateMachine = new PrimitivePhoneCallStateMachine();
+        final PrimitiveStateStore<Phone.State> store = new PrimitiveStateStore<>(Phone.State.class, 1000, 2);
+        for (int id = 0; id < 1000; id += 2) {
+            store.add(id, Phone.State.OffHook);
+        }
+        Assert.assertEquals(500, store.size());
+        Assert.assertEquals(500, store.count(Phone.State.OffHook));
+
+        for (int id = 0; id < 1000; id += 2) {
+            Assert.assertTrue(store.transition(stateMachine, id, new Dialed(id + 100)));
+        }
+        for (int id = 0; id < 1000; id += 4) {
+            Assert.assertTrue(store.transition(stateMachine, id, new Phone.CallConnected()));
+        }
+        Assert.assertFalse(store.transition(stateMachine, 1, new Phone.CallConnected()));
+        Assert.assertFalse(store.transition(stateMachine, 0, new Phone.CallConnected()));
+        Assert.assertEquals(0, store.count(Phone.State.OffHook));
+        Assert.assertEquals(250, store.count(Phone.State.Ringing));
+        Assert.assertEquals(250, store.count(Phone.State.Connected));
+        Assert.assertEquals(102, store.getLong(2, CALLING_NUMBER));
+
+        final List<Integer> connected = new ArrayList<>();
+        store.forEach(Phone.State.Connected, connected::add);
+        Assert.assertEquals(250, connected.size());
+        Assert.assertEquals(Integer.valueOf(0), connected.get(0));
+        Assert.assertEquals(Integer.valueOf(996), connected.get(249));
+
+        Assert.assertTrue(store.transition(stateMachine, 0, new Phone.HungUp()));
+        Assert.assertEquals(1, store.getLong(0, CALLS));
+        Assert.assertEquals(Phone.State.OffHook, store.getState(0));
+        Assert.assertEquals(Long.valueOf(1), store.census().get(Phone.State.OffHook));
+
+        Assert.assertEquals(Phone.State.Ringing, store.remove(2));
+        Assert.assertNull(store.getState(2));
+        Assert.assertFalse(store.transition(stateMachine, 2, new Phone.HungUp()));
+        Assert.assertEquals(249, store.count(Phone.State.Ringing));
+        Assert.assertEquals(499, store.size());
+    }
+
+    @Test
+    public void testRemovedDuringTransition() {
+
+        final PrimitiveStateStore<Phone.State> store = new PrimitiveStateStore<>(Phone.State.class, 10, 2);
+        final AtomicReference<PrimitiveStateStore.Entity<Phone.State>> dropped = new AtomicReference<>();
+        // hung up calls are dropped from the store
+        final StateMachine<Phone.State, PrimitiveStateStore.Entity<Phone.State>> stateMachine =
+                new StateMachine<Phone.State, PrimitiveStateStore.Entity<Phone.State>>(
+                        "Dropping", PrimitiveStateStore.Entity::getState, PrimitiveStateStore.Entity::withState,
+                        PrimitiveStateStore.Entity::getKey) {
+                    {
+                        fromState(Phone.State.Ringing)
+                                .permit(Phone.HungUp.class, Phone.State.OffHook, (hungUp, phone) -> {
+                                    store.remove(phone.getId());
+                                    dropped.set(phone);
+                                    return phone;
+                                });
+                    }
+                };
+        store.add(1, Phone.State.Ringing);
+        store.add(2, Phone.State.Ringing);
+
+        Assert.assertFalse(store.transition(stateMachine, 1, new Phone.HungUp()));
+        Assert.assertFalse(store.contains(1));
+        Assert.assertEquals(0, store.count(Phone.State.OffHook));
+        Assert.assertEquals(1, store.count(Phone.State.Ringing));
+        Assert.assertFalse(store.transition(stateMachine, 1, new Phone.HungUp()));
+        Assert.assertTrue(store.contains(2));
+
+        // cursor of removed entity fails instead of reading garbage
+        final PrimitiveStateStore.Entity<Phone.State> entity = dropped.get();
+        Assert.assertSame(entity.getKey(), entity.getKey());
+        try {
+            entity.getState();
+            Assert.fail("Expected removed entity");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("No entity 1", e.getMessage());
+        }
+    }
+}
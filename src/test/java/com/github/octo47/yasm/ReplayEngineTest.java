@@ -0,0 +1,92 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReplayEngineTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParallelReplay() throws IOException {
+
+        final int phones = 100;
+        final ConcurrentMap<String, Phone> objects = new ConcurrentHashMap<>();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        stateMachine.setTracer(new Slf4jTransitionTracer<Phone.State, Phone>() {
+            @Override
+            public boolean isEnabled() {
+                throw new AssertionError("Replay shouldn't be traced");
+            }
+        });
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try (TransitionJournal journal = new TransitionJournal(folder.getRoot().toPath(), 4096)) {
+            for (int i = 0; i < phones; i++) {
+                final String line = "line-" + i;
+                objects.put(line, Phone.of(line, Phone.State.OffHook, null, null, null, Duration.ZERO));
+            }
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < phones; i++) {
+                    final String line = "line-" + i;
+                    append(journal, line, new Phone.CallDialed(line + "-" + round));
+                    append(journal, line, new Phone.CallConnected());
+                    append(journal, line, new Phone.LeftMessage("message-" + round));
+                }
+            }
+            final AtomicInteger chunks = new AtomicInteger();
+            final ReplayEngine engine = new ReplayEngine(pool, 8, 128);
+            final ReplayProgress progress = engine.replay(journal, journal.firstPosition(), (position, entityId, typeId, payload) -> {
+                final Phone phone = objects.get(entityId);
+                objects.put(entityId, stateMachine.transitionUntraced(phone, PhoneCodecs.ACTIONS.decode(typeId, payload)));
+            }, p -> chunks.incrementAndGet());
+
+            Assert.assertTrue(progress.isComplete());
+            Assert.assertEquals(phones * 30, progress.getRecords());
+            Assert.assertEquals(phones * 30 / 128 + 1, chunks.get());
+            long partitioned = 0;
+            for (int i = 0; i < progress.getPartitions(); i++) {
+                partitioned += progress.getRecords(i);
+            }
+            Assert.assertEquals(progress.getRecords(), partitioned);
+            for (int i = 0; i < phones; i++) {
+                final Phone phone = objects.get("line-" + i);
+                Assert.assertEquals(Phone.State.OffHook, phone.getState());
+                Assert.assertEquals("message-9", phone.getLeftMessage());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMachineReplay() throws IOException {
+
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        final ConcurrentMap<String, Phone> objects = new ConcurrentHashMap<>();
+        objects.put("line", Phone.of("line", Phone.State.OffHook, null, null, null, Duration.ZERO));
+        try (TransitionJournal journal = new TransitionJournal(folder.getRoot().toPath(), 4096)) {
+            append(journal, "line", new Phone.CallDialed("1"));
+            append(journal, "line", new Phone.CallConnected());
+            // unknown objects are skipped
+            append(journal, "other", new Phone.CallDialed("2"));
+            final ReplayProgress progress = new ReplayEngine().replay(stateMachine, PhoneCodecs.ACTIONS, journal, 0, objects);
+            Assert.assertEquals(3, progress.getRecords());
+            Assert.assertEquals(Phone.State.Connected, objects.get("line").getState());
+            Assert.assertEquals(1, objects.size());
+        }
+    }
+
+    private static void append(TransitionJournal journal, String line, StateMachine.Action action) {
+        journal.append(line, PhoneCodecs.ACTIONS.typeId(action), PhoneCodecs.ACTIONS.encode(action));
+    }
+}
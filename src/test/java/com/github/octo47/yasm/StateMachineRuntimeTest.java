@@ -0,0 +1,150 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class StateMachineRuntimeTest {
+
+    @Test
+    public void testSerializedPerObject() throws Exception {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final int phones = 100;
+        final ExecutorService callers = Executors.newFixedThreadPool(4);
+        try (StateMachineRuntime<Phone.State, Phone> runtime = new StateMachineRuntime<>(stateMachine, 4)) {
+            for (int i = 0; i < phones; i++) {
+                runtime.register(Phone.of("line-" + i, Phone.State.OffHook, null, null, null, Duration.ZERO)).join();
+            }
+            final List<Future<?>> calls = new ArrayList<>();
+            for (int i = 0; i < phones; i++) {
+                final String line = "line-" + i;
+                calls.add(callers.submit(() -> {
+                    // actions are applied in submission order for the same line
+                    runtime.tell(line, new Phone.CallDialed(line));
+                    runtime.tell(line, new Phone.CallConnected());
+                    return runtime.submit(line, new Phone.LeftMessage("bye")).join();
+                }));
+            }
+            for (Future<?> call : calls) {
+                Assert.assertTrue(((Optional<?>) call.get()).isPresent());
+            }
+            for (int i = 0; i < phones; i++) {
+                final Phone phone = runtime.get("line-" + i).join().orElseThrow(AssertionError::new);
+                Assert.assertEquals(Phone.State.OffHook, phone.getState());
+                Assert.assertEquals("bye", phone.getLeftMessage());
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnknownObject() throws Exception {
+
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        try (StateMachineRuntime<Phone.State, Phone> runtime = new StateMachineRuntime<>(stateMachine, 2)) {
+            runtime.submit("nobody", new Phone.HungUp()).join();
+            Assert.fail("Expected unknown object");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+
+    @Test
+    public void testTimeoutsInLanes() throws Exception {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final List<Phone> timedOut = new CopyOnWriteArrayList<>();
+        try (StateMachineRuntime<Phone.State, Phone> runtime =
+                     new StateMachineRuntime<>(stateMachine, 2, clock, Duration.ofMillis(10), (before, after) -> timedOut.add(after))) {
+            final Phone phone = Phone.of("line", Phone.State.OffHook, null, null, null, Duration.ZERO);
+            final CompletableFuture<Optional<Phone>> ringing = runtime.register(phone)
+                    .thenCompose(registered -> runtime.submit("line", new Phone.CallDialed("1")));
+            Assert.assertEquals(Phone.State.Ringing, ringing.join().map(Phone::getState).orElse(null));
+
+            clock.increment(PhoneCallStateMachine.RING_TIMEOUT.plusSeconds(1));
+            runtime.advance().join();
+            Assert.assertEquals(1, timedOut.size());
+            Assert.assertEquals(Phone.State.OffHook, runtime.get("line").join().map(Phone::getState).orElse(null));
+        }
+    }
+
+    @Test
+    public void testConflation() throws Exception {
+
+        final CountDownLatch dialing = new CountDownLatch(1);
+        final CountDownLatch connect = new CountDownLatch(1);
+        final StateMachine<Phone.State, Phone> stateMachine = new StateMachine<Phone.State, Phone>(
+                "Conflated", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(Phone.CallDialed.class, Phone.State.Connected, (dialed, phone) -> {
+                            dialing.countDown();
+                            try {
+                                connect.await();
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            return phone;
+                        });
+                fromState(Phone.State.Connected)
+                        .permit(LoopAction.class, Phone.State.Connected,
+                                (loop, phone) -> phone.withAccumulated(phone.getAccumulated().plusSeconds(1)))
+                        .permit(Phone.LeftMessage.class, Phone.State.Connected,
+                                (message, phone) -> phone.withLeftMessage(message.getLeftMessage()))
+                        .permit(Phone.CallDialed.class, Phone.State.Connected,
+                                (dialed, phone) -> phone.withLeftMessage(phone.getLeftMessage() + dialed.getNumber()));
+            }
+        };
+        try (StateMachineRuntime<Phone.State, Phone> runtime = new StateMachineRuntime<>(stateMachine, 1)) {
+            runtime.conflate(StateMachine.LoopAction.class, Conflation.keepLatest());
+            runtime.conflate(Phone.LeftMessage.class, Conflation.merging(
+                    (pending, next) -> new Phone.LeftMessage(pending.getLeftMessage() + next.getLeftMessage())));
+            runtime.register(Phone.of("line", Phone.State.OffHook, null, null, null, Duration.ZERO)).join();
+
+            // line falls behind while dialing
+            final CompletableFuture<Optional<Phone>> connected = runtime.submit("line", new Phone.CallDialed("1"));
+            dialing.await();
+            for (int i = 0; i < 100; i++) {
+                runtime.tell("line", new StateMachine.LoopAction());
+            }
+            final List<CompletableFuture<Optional<Phone>>> messages = new ArrayList<>();
+            for (String message : Arrays.asList("a", "b", "c")) {
+                messages.add(runtime.submit("line", new Phone.LeftMessage(message)));
+            }
+            // not conflated, but still applied after queued actions
+            final CompletableFuture<Optional<Phone>> dialed = runtime.submit("line", new Phone.CallDialed("!"));
+            final CompletableFuture<Optional<Phone>> last = runtime.submit("line", new StateMachine.LoopAction());
+            Assert.assertEquals(4, runtime.getPendingActions());
+            connect.countDown();
+
+            Assert.assertEquals(Phone.State.Connected, connected.join().map(Phone::getState).orElse(null));
+            final Phone phone = last.join().orElseThrow(AssertionError::new);
+            Assert.assertEquals(Duration.ofSeconds(2), phone.getAccumulated());
+            Assert.assertEquals("abc!", phone.getLeftMessage());
+            Assert.assertEquals("abc!", dialed.join().map(Phone::getLeftMessage).orElse(null));
+            for (CompletableFuture<Optional<Phone>> message : messages) {
+                Assert.assertEquals("abc", message.join().map(Phone::getLeftMessage).orElse(null));
+            }
+            Assert.assertEquals(99, runtime.getConflated(StateMachine.LoopAction.class));
+            Assert.assertEquals(2, runtime.getConflated(Phone.LeftMessage.class));
+            Assert.assertEquals(0, runtime.getPendingActions());
+        }
+    }
+}
@@ -3,8 +3,19 @@ package com.github.octo47.yasm;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class StateMachineTest {
 
@@ -89,4 +100,444 @@ public class StateMachineTest {
         Assert.assertFalse(calling.isPresent());
     }
 
+    @Test
+    public void testFrozenMachineRejectsDefinitions() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        Assert.assertFalse(stateMachine.isFrozen());
+        stateMachine.freeze();
+        Assert.assertTrue(stateMachine.isFrozen());
+        try {
+            stateMachine.fromState(Phone.State.Ringing).permit(Phone.LeftMessage.class, Phone.State.OffHook);
+            Assert.fail("Frozen machine shouldn't accept new transitions");
+        } catch (IllegalStateException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testTransitionFreezesMachine() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        Assert.assertTrue(stateMachine.transition(initialPhone, new Phone.CallDialed("1")).isPresent());
+        Assert.assertTrue(stateMachine.isFrozen());
+    }
+
+    @Test
+    public void testDroppedMachineIsCollected() throws Exception {
+
+        final WeakReference<PhoneCallStateMachine> dropped = transitionedMachine();
+        Assert.assertTrue("Machine should be collected once dropped", collected(dropped));
+    }
+
+    private static WeakReference<PhoneCallStateMachine> transitionedMachine() {
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        Assert.assertTrue(stateMachine.transition(initialPhone, new Phone.CallDialed("1")).isPresent());
+        return new WeakReference<>(stateMachine);
+    }
+
+    // true if referent is collected after a few GC rounds
+    static boolean collected(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        return reference.get() == null;
+    }
+
+    @Test
+    public void testTracer() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final List<String> events = new ArrayList<>();
+        stateMachine.setTracer(new TransitionTracer<Phone.State, Phone>() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public long onStart(StateMachine<Phone.State, Phone> machine, Phone input, Phone.State fromState, StateMachine.Action action) {
+                events.add("START " + fromState);
+                return events.size();
+            }
+
+            @Override
+            public void onComplete(StateMachine<Phone.State, Phone> machine, long traceId, Phone input, Phone.State fromState,
+                                   Phone.State toState, StateMachine.Action action, Phone result) {
+                events.add("END " + toState);
+            }
+
+            @Override
+            public void onNotFound(StateMachine<Phone.State, Phone> machine, long traceId, Phone input, Phone.State fromState,
+                                   StateMachine.Action action) {
+                events.add("NOTFOUND " + fromState);
+            }
+        });
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        Assert.assertNotNull(stateMachine.transitionOrNull(initialPhone, new Phone.CallDialed("1")));
+        Assert.assertNull(stateMachine.transitionOrNull(initialPhone, new Phone.CallConnected()));
+        Assert.assertEquals(Arrays.asList("START OffHook", "END Ringing", "START OffHook", "NOTFOUND OffHook"), events);
+    }
+
+    @Test
+    public void testSlf4jTracer() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        stateMachine.setTracer(new Slf4jTransitionTracer<>());
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        final Phone calling = stateMachine.transition(initialPhone, new Phone.CallDialed("1")).orElseThrow(AssertionError::new);
+        Assert.assertEquals(Phone.State.Ringing, calling.getState());
+        Assert.assertFalse(stateMachine.transition(calling, new Phone.LeftMessage("hi")).isPresent());
+    }
+
+    @Test
+    public void testTransitionAll() {
+
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        final List<Phone> phones = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final Phone.State state = i % 2 == 0 ? Phone.State.Ringing : Phone.State.OffHook;
+            phones.add(Phone.of("line" + i, state, "333-33-33", null, null, Duration.ZERO));
+        }
+
+        final BatchResult<Phone> result = stateMachine.transitionAll(phones, new Phone.HungUp());
+        Assert.assertEquals(phones.size(), result.size());
+        Assert.assertEquals(500, result.getTransitionedCount());
+        for (int i = 0; i < phones.size(); i++) {
+            Assert.assertSame(phones.get(i), result.getInput(i));
+            if (i % 2 == 0) {
+                Assert.assertEquals(Phone.State.OffHook, result.getResult(i).getState());
+                Assert.assertNull(result.getResult(i).getCallingNumber());
+                Assert.assertEquals(phones.get(i).getLine(), result.getResult(i).getLine());
+            } else {
+                Assert.assertNull(result.getResult(i));
+            }
+        }
+        Assert.assertEquals(500, result.getUnmatched().size());
+        Assert.assertTrue(result.getUnmatched().stream().allMatch(phone -> phone.getState() == Phone.State.OffHook));
+        // result keeps its own copy of inputs
+        final Phone first = phones.get(0);
+        phones.clear();
+        Assert.assertEquals(1000, result.size());
+        Assert.assertSame(first, result.getInput(0));
+
+        for (int i = 0; i < 10; i++) {
+            phones.add(result.getInput(i));
+        }
+        final BatchResult<Phone> streamed = stateMachine.transitionAll(phones.stream(), new Phone.HungUp());
+        Assert.assertEquals(5, streamed.getTransitioned().size());
+        Assert.assertEquals(phones.get(2), streamed.getTransitioned().get(1).getLeft());
+    }
+
+    @Test
+    public void testTransitionSequence() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final List<String> events = new ArrayList<>();
+        stateMachine.setTracer(new TransitionTracer<Phone.State, Phone>() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public long onStart(StateMachine<Phone.State, Phone> machine, Phone input, Phone.State fromState, StateMachine.Action action) {
+                events.add("START " + fromState);
+                return 0;
+            }
+
+            @Override
+            public void onComplete(StateMachine<Phone.State, Phone> machine, long traceId, Phone input, Phone.State fromState,
+                                   Phone.State toState, StateMachine.Action action, Phone result) {
+                events.add("END " + toState);
+            }
+
+            @Override
+            public void onNotFound(StateMachine<Phone.State, Phone> machine, long traceId, Phone input, Phone.State fromState,
+                                   StateMachine.Action action) {
+                events.add("NOTFOUND " + fromState);
+            }
+
+            @Override
+            public void onSequence(StateMachine<Phone.State, Phone> machine, Phone input, SequenceResult<Phone.State, Phone> result) {
+                events.add("SEQUENCE " + result.getApplied());
+            }
+        });
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        final SequenceResult<Phone.State, Phone> complete = stateMachine.transitionSequence(initialPhone, Arrays.asList(
+                new Phone.CallDialed("1"), new Phone.CallConnected(), new Phone.LeftMessage("hi")));
+        Assert.assertTrue(complete.isComplete());
+        Assert.assertEquals(-1, complete.getUnmatchedIndex());
+        Assert.assertEquals(Arrays.asList(Phone.State.OffHook, Phone.State.Ringing, Phone.State.Connected, Phone.State.OffHook),
+                            complete.getTrail());
+        Assert.assertEquals("hi", complete.getResult().getLeftMessage());
+
+        final SequenceResult<Phone.State, Phone> stopped = stateMachine.transitionSequence(initialPhone, Arrays.asList(
+                new Phone.CallDialed("1"), new Phone.LeftMessage("hi"), new Phone.HungUp()));
+        Assert.assertFalse(stopped.isComplete());
+        Assert.assertEquals(1, stopped.getUnmatchedIndex());
+        Assert.assertEquals(1, stopped.getApplied());
+        Assert.assertEquals(Phone.State.Ringing, stopped.getResult().getState());
+
+        final SequenceResult<Phone.State, Phone> empty = stateMachine.transitionSequence(initialPhone, Collections.emptyList());
+        Assert.assertSame(initialPhone, empty.getResult());
+        Assert.assertEquals(Collections.singletonList(Phone.State.OffHook), empty.getTrail());
+
+        Assert.assertEquals(Arrays.asList("SEQUENCE 3", "SEQUENCE 1", "SEQUENCE 0"), events);
+    }
+
+    @Test
+    public void testMutableMode() {
+
+        final TestClock clock = new TestClock();
+        final Duration maxCall = Duration.ofHours(1);
+        final PhoneCallStateMachine immutable = new PhoneCallStateMachine(clock, maxCall);
+        final MutablePhoneCallStateMachine mutable = new MutablePhoneCallStateMachine(clock, maxCall);
+        final List<StateMachine.Action> actions = Arrays.asList(
+                new Phone.CallDialed("1"), new Phone.CallConnected(), new Phone.HungUp(),
+                new Phone.CallDialed("2"), new Phone.CallConnected(), new Phone.LeftMessage("hi"));
+
+        Phone expected = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        Phone actual = expected;
+        for (StateMachine.Action action : actions) {
+            clock.increment(Duration.ofSeconds(10));
+            expected = immutable.transitionOrNull(expected, action);
+            actual = mutable.transitionOrNull(actual, action);
+            Assert.assertNotNull(actual);
+            Assert.assertEquals(String.valueOf(action), expected, actual);
+        }
+        Assert.assertEquals("hi", actual.getLeftMessage());
+        Assert.assertEquals(Duration.ofSeconds(10), actual.getAccumulated());
+
+        clock.increment(maxCall);
+        final Phone connected = mutable.transitionSequence(actual, Arrays.asList(new Phone.CallDialed("3"), new Phone.CallConnected()))
+                .getResult();
+        clock.increment(maxCall.plusSeconds(1));
+        Assert.assertEquals(immutable.loop(connected), mutable.loop(connected));
+    }
+
+    interface Urgent extends StateMachine.Action {
+    }
+
+    static class UrgentCall extends Phone.CallDialed implements Urgent {
+        UrgentCall(String number) {
+            super(number);
+        }
+    }
+
+    static class UrgentHangUp extends Phone.HungUp implements Urgent {
+    }
+
+    @Test
+    public void testSupertypeDispatch() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        // registered for superclass
+        final Phone ringing = stateMachine.transitionOrNull(initialPhone, new UrgentCall("911"));
+        Assert.assertNotNull(ringing);
+        Assert.assertEquals("911", ringing.getCallingNumber());
+        Assert.assertEquals(Phone.State.OffHook, stateMachine.transitionOrNull(ringing, new UrgentHangUp()).getState());
+
+        // the most specific registered supertype wins, per state
+        final StateMachine<Phone.State, Phone> urgent = new StateMachine<Phone.State, Phone>(
+                "Urgent", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(Urgent.class, Phone.State.Connected)
+                        .permit(Phone.CallDialed.class, Phone.State.Ringing);
+                fromState(Phone.State.Ringing)
+                        .permit(Urgent.class, Phone.State.Connected);
+            }
+        };
+        Assert.assertEquals(Phone.State.Ringing, urgent.transitionOrNull(initialPhone, new UrgentCall("911")).getState());
+        Assert.assertEquals(Phone.State.Connected, urgent.transitionOrNull(initialPhone, new UrgentHangUp()).getState());
+        Assert.assertEquals(Phone.State.Connected, urgent.transitionOrNull(ringing, new UrgentCall("911")).getState());
+        Assert.assertNull(urgent.transitionOrNull(ringing, new Phone.CallDialed("1")));
+        Assert.assertNull(urgent.transitionOrNull(initialPhone, new Phone.HungUp()));
+    }
+
+    @Test
+    public void testAdaptiveOrdering() {
+
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Adaptive", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                final StateBuilder offHook = fromState(Phone.State.OffHook).exclusiveGuards();
+                for (int i = 0; i < 5; i++) {
+                    final String number = String.valueOf(i);
+                    offHook.permitIf(Phone.CallDialed.class, Phone.State.Ringing,
+                                     (phone, feedback) -> number.equals(phone.getCallingNumber()),
+                                     (dialed, phone) -> phone.withLeftMessage(number));
+                }
+                fromState(Phone.State.Ringing)
+                        .permit(Phone.HungUp.class, Phone.State.OffHook);
+            }
+        };
+        machine.enableAdaptiveOrdering(10);
+        final Phone.CallDialed dial = new Phone.CallDialed("1");
+        Assert.assertTrue(machine.getGuardOrdering(Phone.State.Ringing, Phone.HungUp.class).isEmpty());
+
+        for (int i = 0; i < 2000; i++) {
+            final String number = i % 10 == 0 ? String.valueOf(i % 4) : "4";
+            final Phone phone = Phone.of(Phone.State.OffHook, number, null, null, Duration.ZERO);
+            Assert.assertEquals(number, machine.transitionOrNull(phone, dial).getLeftMessage());
+        }
+        Assert.assertNull(machine.transitionOrNull(Phone.of(Phone.State.OffHook, "5", null, null, Duration.ZERO), dial));
+
+        final List<GuardStats<Phone.State>> ordering = machine.getGuardOrdering(Phone.State.OffHook, Phone.CallDialed.class);
+        Assert.assertEquals(5, ordering.size());
+        Assert.assertEquals(1800, ordering.get(0).getPasses());
+        long passes = 0;
+        for (GuardStats<Phone.State> stats : ordering) {
+            passes += stats.getPasses();
+        }
+        Assert.assertEquals(2000, passes);
+    }
+
+    static final class PhoneHolder {
+        static final AtomicReferenceFieldUpdater<PhoneHolder, Phone> PHONE =
+                AtomicReferenceFieldUpdater.newUpdater(PhoneHolder.class, Phone.class, "phone");
+
+        volatile Phone phone;
+    }
+
+    @Test
+    public void testTransitionAtomically() throws Exception {
+
+        // every message accounts a second of connected call
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Atomic", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.Connected)
+                        .permit(Phone.LeftMessage.class, Phone.State.Connected,
+                                (message, phone) -> phone.withAccumulated(phone.getAccumulated().plusSeconds(1)));
+            }
+        };
+        final Phone connected = Phone.of(Phone.State.Connected, "333", null, null, Duration.ZERO);
+        final AtomicReference<Phone> shared = new AtomicReference<>(connected);
+        final PhoneHolder holder = new PhoneHolder();
+        holder.phone = connected;
+
+        final int threads = 4;
+        final int messages = 5000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> callers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                callers.add(executor.submit(() -> {
+                    final Phone.LeftMessage message = new Phone.LeftMessage("hi");
+                    for (int j = 0; j < messages; j++) {
+                        Assert.assertTrue(machine.transitionAtomically(shared, message).isPresent());
+                        Assert.assertTrue(machine.transitionAtomically(holder, PhoneHolder.PHONE, message).isPresent());
+                    }
+                }));
+            }
+            for (Future<?> caller : callers) {
+                caller.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Duration.ofSeconds(threads * messages), shared.get().getAccumulated());
+        Assert.assertEquals(Duration.ofSeconds(threads * messages), holder.phone.getAccumulated());
+
+        Assert.assertFalse(machine.transitionAtomically(shared, new Phone.HungUp()).isPresent());
+        final AtomicTransitionStats stats = machine.getAtomicTransitionStats();
+        Assert.assertEquals(2 * threads * messages, stats.getPublished());
+        Assert.assertEquals(1, stats.getNotFound());
+        Assert.assertTrue(stats.getRetries() >= stats.getContended());
+    }
+
+    @Test
+    public void testTransitionAtomicallyExhausted() {
+
+        // every attempt replaces shared object, as if another thread always publishes first
+        final AtomicReference<Phone> shared = new AtomicReference<>();
+        final AtomicInteger attempts = new AtomicInteger();
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Contended", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.Connected)
+                        .permit(Phone.LeftMessage.class, Phone.State.Connected, (message, phone) -> {
+                            attempts.incrementAndGet();
+                            shared.set(phone.withLeftMessage(message.getLeftMessage()));
+                            return phone.withAccumulated(phone.getAccumulated().plusSeconds(1));
+                        });
+            }
+        };
+        shared.set(Phone.of(Phone.State.Connected, "333", null, null, Duration.ZERO));
+        try {
+            machine.transitionAtomically(shared, new Phone.LeftMessage("hi"), 3);
+            Assert.fail("Expected exhausted attempts");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("not published after 3 attempts"));
+        }
+        Assert.assertEquals(3, attempts.get());
+        Assert.assertEquals(Duration.ZERO, shared.get().getAccumulated());
+        final AtomicTransitionStats stats = machine.getAtomicTransitionStats();
+        Assert.assertEquals(1, stats.getExhausted());
+        Assert.assertEquals(0, stats.getPublished());
+        Assert.assertEquals(2, stats.getRetries());
+    }
+
+    @Test
+    public void testTransitionAtomicallyObservedOnce() {
+
+        // first attempt loses the race to a concurrent message
+        final AtomicReference<Phone> shared = new AtomicReference<>();
+        final AtomicInteger attempts = new AtomicInteger();
+        final StateMachine<Phone.State, Phone> machine = new StateMachine<Phone.State, Phone>(
+                "Observed", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.Connected)
+                        .permit(Phone.LeftMessage.class, Phone.State.Connected, (message, phone) -> {
+                            if (attempts.incrementAndGet() == 1) {
+                                shared.set(phone.withLeftMessage("concurrent"));
+                            }
+                            return phone.withAccumulated(phone.getAccumulated().plusSeconds(1));
+                        });
+            }
+        };
+        final TransitionMetrics<Phone.State> metrics = machine.enableMetrics();
+        final List<Phone.State> recorded = new ArrayList<>();
+        machine.setRecorder(new TransitionRecorder<Phone.State, Phone>() {
+            @Override
+            public void onTransition(Phone input, Phone.State fromState, Phone.State toState, StateMachine.Action action,
+                                     int matched, int rejected, long startedNanos) {
+                recorded.add(toState);
+            }
+
+            @Override
+            public void onError(Phone input, Phone.State fromState, StateMachine.Action action, long startedNanos,
+                                RuntimeException error) {
+                Assert.fail("Unexpected error " + error);
+            }
+        });
+        shared.set(Phone.of(Phone.State.Connected, "333", null, null, Duration.ZERO));
+
+        final Phone published = machine.transitionAtomically(shared, new Phone.LeftMessage("hi")).orElseThrow(AssertionError::new);
+        Assert.assertEquals("concurrent", published.getLeftMessage());
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertEquals(1, machine.getAtomicTransitionStats().getRetries());
+        // lost attempt is neither metered nor recorded
+        final TransitionMetrics.TransitionSnapshot<Phone.State> message = metrics.snapshot().getTransitions().get(0);
+        Assert.assertEquals(1, message.getFired());
+        Assert.assertEquals(1, message.getGuardAccepted());
+        Assert.assertEquals(Collections.singletonList(Phone.State.Connected), recorded);
+    }
 }
@@ -0,0 +1,89 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimeoutSchedulerTest {
+
+    @Test
+    public void testRingingTimeout() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final TimeoutScheduler<Phone.State, Phone> scheduler = new TimeoutScheduler<>(stateMachine, clock);
+
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        scheduler.track(initialPhone);
+        Assert.assertEquals(0, scheduler.pendingTimeouts());
+
+        final Phone calling = scheduler.transition(initialPhone, new Phone.CallDialed("1")).orElseThrow(AssertionError::new);
+        Assert.assertEquals(1, scheduler.pendingTimeouts());
+
+        clock.increment(PhoneCallStateMachine.RING_TIMEOUT.minusSeconds(1));
+        Assert.assertEquals(0, scheduler.advance());
+
+        clock.increment(Duration.ofSeconds(2));
+        final List<Phone> timedOut = new ArrayList<>();
+        Assert.assertEquals(1, scheduler.advance((before, after) -> timedOut.add(after)));
+        Assert.assertEquals(1, timedOut.size());
+        Assert.assertEquals(Phone.State.OffHook, timedOut.get(0).getState());
+        Assert.assertNull(timedOut.get(0).getCallingNumber());
+        Assert.assertEquals(timedOut.get(0), scheduler.get(stateMachine.getObjectId(timedOut.get(0))).orElse(null));
+        Assert.assertNotEquals(calling, timedOut.get(0));
+        Assert.assertEquals(0, scheduler.pendingTimeouts());
+    }
+
+    @Test
+    public void testDeadlineCancelledOnExit() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock);
+        final TimeoutScheduler<Phone.State, Phone> scheduler = new TimeoutScheduler<>(stateMachine, clock);
+
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone calling = scheduler.transition(initialPhone, new Phone.CallDialed("1")).orElseThrow(AssertionError::new);
+        scheduler.transition(calling, new Phone.CallConnected()).orElseThrow(AssertionError::new);
+        Assert.assertEquals(0, scheduler.pendingTimeouts());
+
+        clock.increment(PhoneCallStateMachine.RING_TIMEOUT.multipliedBy(2));
+        Assert.assertEquals(0, scheduler.advance());
+    }
+
+    @Test
+    public void testParentDeadlineKeptBetweenSubStates() {
+
+        final TestClock clock = new TestClock();
+        final StateMachine<Phone.State, Phone> stateMachine = new StateMachine<Phone.State, Phone>(
+                "Nested", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permitAfter(Duration.ofSeconds(10), Phone.State.OffHook);
+                fromState(Phone.State.Ringing)
+                        .subStateOf(Phone.State.OffHook)
+                        .permit(Phone.CallConnected.class, Phone.State.Connected);
+                fromState(Phone.State.Connected)
+                        .subStateOf(Phone.State.OffHook);
+            }
+        };
+        final TimeoutScheduler<Phone.State, Phone> scheduler = new TimeoutScheduler<>(stateMachine, clock);
+
+        final Phone ringing = Phone.of("line", Phone.State.Ringing, null, null, null, Duration.ZERO);
+        scheduler.track(ringing);
+        clock.increment(Duration.ofSeconds(6));
+        Assert.assertEquals(0, scheduler.advance());
+
+        // sibling sub states share the parent deadline, parent is neither exited nor entered
+        scheduler.transition(ringing, new Phone.CallConnected()).orElseThrow(AssertionError::new);
+        Assert.assertEquals(1, scheduler.pendingTimeouts());
+        clock.increment(Duration.ofSeconds(5));
+        final List<Phone> timedOut = new ArrayList<>();
+        Assert.assertEquals(1, scheduler.advance((before, after) -> timedOut.add(after)));
+        Assert.assertEquals(Phone.State.OffHook, timedOut.get(0).getState());
+        // timeout transition re-enters the parent and restarts its deadline
+        Assert.assertEquals(1, scheduler.pendingTimeouts());
+    }
+}
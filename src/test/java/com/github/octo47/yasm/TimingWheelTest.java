@@ -0,0 +1,53 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiresInDeadlineOrder() {
+
+        final long start = 1_000_000L;
+        final TimingWheel<Long> wheel = new TimingWheel<>(10, start, 2, 2);
+        final Random random = new Random(42);
+        final List<TimingWheel.Timeout<Long>> timeouts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final long deadline = start + random.nextInt(5000);
+            timeouts.add(wheel.schedule(deadline, deadline));
+        }
+        // cancel every third
+        int cancelled = 0;
+        for (int i = 0; i < timeouts.size(); i += 3) {
+            Assert.assertTrue(timeouts.get(i).cancel());
+            Assert.assertFalse(timeouts.get(i).cancel());
+            cancelled++;
+        }
+        Assert.assertEquals(timeouts.size() - cancelled, wheel.size());
+
+        final List<Long> expired = new ArrayList<>();
+        for (long now = start; now <= start + 6000; now += 7) {
+            final long currentTime = now;
+            wheel.advance(now, timeout -> {
+                Assert.assertTrue("Expired too early", timeout.getDeadlineMillis() <= currentTime);
+                Assert.assertTrue("Expired too late", timeout.getDeadlineMillis() > currentTime - 20);
+                expired.add(timeout.getPayload());
+            });
+        }
+        Assert.assertEquals(timeouts.size() - cancelled, expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testOverflow() {
+
+        final TimingWheel<String> wheel = new TimingWheel<>(1, 0, 1, 2);
+        wheel.schedule("far", 100);
+        Assert.assertEquals(0, wheel.advance(99, timeout -> Assert.fail("Expired too early")));
+        Assert.assertEquals(1, wheel.advance(100, timeout -> Assert.assertEquals("far", timeout.getPayload())));
+    }
+}
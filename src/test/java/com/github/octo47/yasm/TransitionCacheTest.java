@@ -0,0 +1,142 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TransitionCacheTest {
+
+    // action with value equality
+    private static final class Rang implements StateMachine.Action {
+        private final int times;
+
+        private Rang(int times) {
+            this.times = times;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Rang && ((Rang) o).times == times;
+        }
+
+        @Override
+        public int hashCode() {
+            return times;
+        }
+    }
+
+    private static final class PureMachine extends StateMachine<Phone.State, Phone> {
+
+        private final AtomicInteger dialed = new AtomicInteger();
+        private final AtomicInteger hungUp = new AtomicInteger();
+
+        private PureMachine() {
+            super("Pure", Phone::getState, Phone::withState, Phone::getLine);
+
+            fromState(Phone.State.OffHook)
+                    .permit(Phone.CallDialed.class, Phone.State.Ringing, (a, phone) -> {
+                        dialed.incrementAndGet();
+                        return phone.withCallingNumber(a.getNumber());
+                    });
+
+            fromState(Phone.State.Ringing)
+                    .permitIf(Phone.HungUp.class, Phone.State.OffHook, impure((phone, feedback) -> hungUp.incrementAndGet() > 0));
+        }
+    }
+
+    @Test
+    public void testMemoization() {
+
+        final PureMachine machine = new PureMachine();
+        final TransitionCache<Phone> cache = machine.enableMemoization(100);
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone.CallDialed dial = new Phone.CallDialed("1");
+
+        final Phone ringing = machine.transitionOrNull(offHook, dial);
+        Assert.assertNotNull(ringing);
+        // equal input object, e.g. replayed or decoded, hits the cache
+        Assert.assertSame(ringing, machine.transitionOrNull(Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO), dial));
+        Assert.assertEquals(1, machine.dialed.get());
+        // other action instance doesn't define equals, so it is another key
+        Assert.assertNotSame(ringing, machine.transitionOrNull(offHook, new Phone.CallDialed("1")));
+        Assert.assertEquals(2, machine.dialed.get());
+
+        // NOTFOUND is cached too
+        final Phone.CallConnected connected = new Phone.CallConnected();
+        Assert.assertNull(machine.transitionOrNull(offHook, connected));
+        Assert.assertNull(machine.transitionOrNull(offHook, connected));
+        // equal actions are the same key
+        Assert.assertNull(machine.transitionOrNull(offHook, new Rang(2)));
+        Assert.assertNull(machine.transitionOrNull(Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO), new Rang(2)));
+
+        // impure guard bypasses cache
+        final Phone.HungUp hangUp = new Phone.HungUp();
+        Assert.assertNotNull(machine.transitionOrNull(ringing, hangUp));
+        Assert.assertNotNull(machine.transitionOrNull(ringing, hangUp));
+        Assert.assertEquals(2, machine.hungUp.get());
+
+        Assert.assertEquals(3, cache.stats().hitCount());
+        Assert.assertEquals(4, cache.stats().missCount());
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testBoundedResultsPerObject() {
+
+        final PureMachine machine = new PureMachine();
+        final TransitionCache<Phone> cache = machine.enableMemoization(100);
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone.CallDialed first = new Phone.CallDialed("0");
+        Assert.assertNotNull(machine.transitionOrNull(offHook, first));
+        for (int i = 1; i < 20; i++) {
+            Assert.assertNotNull(machine.transitionOrNull(offHook, new Phone.CallDialed(Integer.toString(i))));
+        }
+        // object keeps results of last actions only
+        Assert.assertEquals(8, cache.size());
+        Assert.assertNotNull(machine.transitionOrNull(offHook, first));
+        Assert.assertEquals(21, machine.dialed.get());
+        Assert.assertEquals(0, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testTransitionAllMemoized() {
+
+        final PureMachine machine = new PureMachine();
+        final TransitionCache<Phone> cache = machine.enableMemoization(100);
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone.CallDialed dial = new Phone.CallDialed("1");
+
+        final BatchResult<Phone> result = machine.transitionAll(Collections.nCopies(100, offHook), dial, new ForkJoinPool(1));
+        Assert.assertEquals(100, result.getTransitionedCount());
+        Assert.assertEquals(1, machine.dialed.get());
+        Assert.assertEquals(99, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testImpureStates() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine machine = new PhoneCallStateMachine(clock);
+        final TransitionCache<Phone> cache = machine.enableMemoization(100, (input, result) -> 1);
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone.CallDialed dial = new Phone.CallDialed("1");
+        final Phone.CallConnected connect = new Phone.CallConnected();
+        final Phone.LeftMessage leaveMessage = new Phone.LeftMessage("hi");
+
+        final Phone ringing = machine.transitionOrNull(offHook, dial);
+        final Phone talking = machine.transitionOrNull(ringing, connect);
+        clock.increment(Duration.ofSeconds(10));
+        final Phone talkingLater = machine.transitionOrNull(ringing, connect);
+        // Connected is impure, so entry transformer sees the clock
+        Assert.assertNotEquals(talking, talkingLater);
+        // no candidates for the action in Ringing, NOTFOUND is memoized
+        Assert.assertNull(machine.transitionOrNull(ringing, leaveMessage));
+        Assert.assertNull(machine.transitionOrNull(ringing, leaveMessage));
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.octo47.yasm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+
+public class TransitionMetricsTest {
+
+    @Test
+    public void testCounters() {
+
+        final TestClock clock = new TestClock();
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(clock, Duration.ofHours(1));
+        final TransitionMetrics<Phone.State> metrics = stateMachine.enableMetrics();
+        final Phone initialPhone = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        final Phone connected = stateMachine.transition(initialPhone, new Phone.CallDialed("1"))
+                .flatMap(phone -> stateMachine.transition(phone, new Phone.CallConnected()))
+                .orElseThrow(AssertionError::new);
+        Assert.assertFalse(stateMachine.loop(connected).isPresent());
+        Assert.assertFalse(stateMachine.loop(connected).isPresent());
+        Assert.assertTrue(stateMachine.transition(connected, new Phone.HungUp()).isPresent());
+        Assert.assertFalse(stateMachine.transition(initialPhone, new Phone.HungUp()).isPresent());
+
+        final TransitionMetrics.Snapshot<Phone.State> snapshot = metrics.snapshot();
+        final TransitionMetrics.TransitionSnapshot<Phone.State> dialed = find(snapshot, Phone.State.OffHook, Phone.CallDialed.class);
+        Assert.assertEquals(1, dialed.getFired());
+        Assert.assertEquals(1, dialed.getGuardAccepted());
+        Assert.assertEquals(1, dialed.getActionLatency().getCount());
+        Assert.assertEquals(1, dialed.getStateTransitionLatency().getCount());
+
+        // ANY timeout guard rejected for both loops and hung up
+        final TransitionMetrics.TransitionSnapshot<Phone.State> tooLong = find(snapshot, Phone.State.Connected, StateMachine.AnyAction.class);
+        Assert.assertEquals(0, tooLong.getFired());
+        Assert.assertEquals(3, tooLong.getGuardRejected());
+        Assert.assertEquals(1.0, tooLong.getGuardRejectRate(), 0.0);
+        Assert.assertEquals(3, tooLong.getGuardLatency().getCount());
+
+        Assert.assertEquals(Long.valueOf(2), snapshot.getNotFound().get(Pair.of(Phone.State.Connected, StateMachine.LoopAction.class)));
+        Assert.assertEquals(Long.valueOf(1), snapshot.getNotFound().get(Pair.of(Phone.State.OffHook, Phone.HungUp.class)));
+    }
+
+    @Test
+    public void testMatchedTransitions() {
+
+        final StateMachine<Phone.State, Phone> stateMachine = new StateMachine<Phone.State, Phone>(
+                "Matched", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(StateMachine.SimpleAction.class, Phone.State.Connected);
+                fromState(Phone.State.Ringing)
+                        .subStateOf(Phone.State.OffHook);
+            }
+        };
+        final TransitionMetrics<Phone.State> metrics = stateMachine.enableMetrics();
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone ringing = Phone.of(Phone.State.Ringing, null, null, null, Duration.ZERO);
+
+        Assert.assertTrue(stateMachine.transition(offHook, new Phone.CallConnected()).isPresent());
+        Assert.assertTrue(stateMachine.transition(offHook, new Phone.CallConnected()).isPresent());
+        Assert.assertTrue(stateMachine.transition(ringing, new Phone.HungUp()).isPresent());
+
+        // matches through action supertype and parent state are accounted under concrete action and state
+        final TransitionMetrics.Snapshot<Phone.State> snapshot = metrics.snapshot();
+        Assert.assertEquals(3, snapshot.getTransitions().size());
+        Assert.assertEquals(0, find(snapshot, Phone.State.OffHook, StateMachine.SimpleAction.class).getFired());
+        final TransitionMetrics.TransitionSnapshot<Phone.State> connected =
+                find(snapshot, Phone.State.OffHook, Phone.CallConnected.class);
+        Assert.assertEquals(2, connected.getFired());
+        Assert.assertEquals(Phone.State.Connected, connected.getTo());
+        Assert.assertEquals(2, connected.getActionLatency().getCount());
+        Assert.assertEquals(1, find(snapshot, Phone.State.Ringing, Phone.HungUp.class).getGuardAccepted());
+    }
+
+    @Test
+    public void testInheritedAnyTransitions() {
+
+        final StateMachine<Phone.State, Phone> stateMachine = new StateMachine<Phone.State, Phone>(
+                "InheritedAny", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(StateMachine.ANY, Phone.State.Connected);
+                fromState(Phone.State.Ringing)
+                        .subStateOf(Phone.State.OffHook);
+            }
+        };
+        final TransitionMetrics<Phone.State> metrics = stateMachine.enableMetrics();
+        final Phone ringing = Phone.of(Phone.State.Ringing, null, null, null, Duration.ZERO);
+
+        Assert.assertTrue(stateMachine.transition(ringing, new Phone.HungUp()).isPresent());
+        Assert.assertTrue(stateMachine.transition(ringing, new Phone.CallConnected()).isPresent());
+
+        // ANY transition inherited by sub state is accounted under AnyAction, not under concrete actions
+        final TransitionMetrics.Snapshot<Phone.State> snapshot = metrics.snapshot();
+        Assert.assertEquals(2, snapshot.getTransitions().size());
+        final TransitionMetrics.TransitionSnapshot<Phone.State> inherited =
+                find(snapshot, Phone.State.Ringing, StateMachine.AnyAction.class);
+        Assert.assertEquals(2, inherited.getFired());
+        Assert.assertEquals(Phone.State.Connected, inherited.getTo());
+    }
+
+    @Test
+    public void testHistogram() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500_000, snapshot.getValueAtPercentile(50), 500_000 / 16);
+        Assert.assertEquals(990_000, snapshot.getValueAtPercentile(99), 990_000 / 16);
+        Assert.assertEquals(1_000_000, snapshot.getMax(), 1_000_000 / 16);
+        Assert.assertEquals(500_500, snapshot.getMean(), 500_500 / 16);
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789}) {
+            final int bucket = LatencyHistogram.bucket(value);
+            Assert.assertTrue(LatencyHistogram.lowerBound(bucket) <= value);
+            Assert.assertTrue(LatencyHistogram.upperBound(bucket) >= value);
+        }
+    }
+
+    private static TransitionMetrics.TransitionSnapshot<Phone.State> find(TransitionMetrics.Snapshot<Phone.State> snapshot,
+                                                                          Phone.State from, Class<?> actionClass) {
+        return snapshot.getTransitions().stream()
+                .filter(transition -> transition.getFrom() == from && transition.getActionClass() == actionClass)
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+    }
+}
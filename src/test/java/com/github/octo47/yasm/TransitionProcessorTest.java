@@ -0,0 +1,156 @@
+package com.github.octo47.yasm;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransitionProcessorTest {
+
+    /**
+     * Emits items only on demand and tracks how many items were requested but not yet emitted.
+     */
+    private static final class IterablePublisher<T> implements Publisher<T> {
+        private final Iterator<T> items;
+        private final AtomicLong outstanding = new AtomicLong();
+        private long maxOutstanding;
+        private boolean emitting;
+
+        private IterablePublisher(Iterable<T> items) {
+            this.items = items.iterator();
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super T> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    synchronized (IterablePublisher.this) {
+                        maxOutstanding = Math.max(maxOutstanding, outstanding.addAndGet(n));
+                        // requests from onNext are served by outer loop
+                        if (emitting) {
+                            return;
+                        }
+                        emitting = true;
+                    }
+                    while (true) {
+                        synchronized (IterablePublisher.this) {
+                            if (outstanding.get() == 0 || !items.hasNext()) {
+                                emitting = false;
+                                if (!items.hasNext()) {
+                                    subscriber.onComplete();
+                                }
+                                return;
+                            }
+                            outstanding.decrementAndGet();
+                        }
+                        subscriber.onNext(items.next());
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+        }
+    }
+
+    /**
+     * Takes one result at a time, as a slow consumer.
+     */
+    private static final class SlowSubscriber<T> implements Subscriber<T> {
+        private final List<T> received = Lists.newArrayList();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Throwable error;
+        private Subscription subscription;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(T item) {
+            received.add(item);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    @Test
+    public void testPartitionedWithBackpressure() throws Exception {
+
+        final PhoneCallStateMachine stateMachine = new PhoneCallStateMachine(new TestClock());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final TransitionProcessor<Phone.State, Phone> processor = new TransitionProcessor<>(stateMachine, 4, 8, executor);
+            final int phones = 50;
+            final List<Pair<String, StateMachine.Action>> actions = Lists.newArrayList();
+            for (int i = 0; i < phones; i++) {
+                processor.register(Phone.of("line-" + i, Phone.State.OffHook, null, null, null, Duration.ZERO));
+            }
+            for (int i = 0; i < phones; i++) {
+                actions.add(Pair.of("line-" + i, new Phone.CallDialed("line-" + i)));
+            }
+            for (int i = 0; i < phones; i++) {
+                actions.add(Pair.of("line-" + i, new Phone.CallConnected()));
+                actions.add(Pair.of("line-" + i, new Phone.CallConnected()));
+                actions.add(Pair.of("line-" + i, new Phone.LeftMessage("bye")));
+            }
+            actions.add(Pair.of("nobody", new Phone.HungUp()));
+
+            final IterablePublisher<Pair<String, StateMachine.Action>> publisher = new IterablePublisher<>(actions);
+            final SlowSubscriber<Pair<String, Optional<Phone>>> subscriber = new SlowSubscriber<>();
+            processor.subscribe(subscriber);
+            publisher.subscribe(processor);
+            Assert.assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+            Assert.assertNull(subscriber.error);
+
+            Assert.assertEquals(actions.size(), subscriber.received.size());
+            // processor never asks for more than it can buffer
+            Assert.assertTrue(publisher.maxOutstanding <= processor.getBufferSize());
+            final Map<String, List<Optional<Phone.State>>> states = Maps.newHashMap();
+            for (Pair<String, Optional<Phone>> result : subscriber.received) {
+                states.computeIfAbsent(result.getKey(), id -> Lists.newArrayList())
+                        .add(result.getValue().map(Phone::getState));
+            }
+            for (int i = 0; i < phones; i++) {
+                Assert.assertEquals(Lists.newArrayList(
+                        Optional.of(Phone.State.Ringing),
+                        Optional.of(Phone.State.Connected),
+                        Optional.empty(),
+                        Optional.of(Phone.State.OffHook)), states.get("line-" + i));
+                Assert.assertEquals("bye", processor.get("line-" + i).orElseThrow(AssertionError::new).getLeftMessage());
+            }
+            Assert.assertEquals(Lists.newArrayList(Optional.empty()), states.get("nobody"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
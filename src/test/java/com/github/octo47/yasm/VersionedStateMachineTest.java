@@ -0,0 +1,97 @@
+package com.github.octo47.yasm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+public class VersionedStateMachineTest {
+
+    @Test
+    public void testPublish() throws Exception {
+
+        final TestClock clock = new TestClock();
+        final VersionedStateMachine<Phone.State, Phone> machine =
+                new VersionedStateMachine<>(new PhoneCallStateMachine(clock, Duration.ofHours(1)));
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        final Phone talking = machine.transition(offHook, new Phone.CallDialed("1"))
+                .flatMap(ringing -> machine.transition(ringing, new Phone.CallConnected()))
+                .orElseThrow(AssertionError::new);
+        clock.increment(Duration.ofMinutes(5));
+        Assert.assertFalse(machine.loop(talking).isPresent());
+
+        // calls are limited to a minute since the next version
+        final VersionedStateMachine.Version<Phone.State, Phone> v2 =
+                machine.publish(new PhoneCallStateMachine(clock, Duration.ofMinutes(1)));
+        Assert.assertEquals(2, v2.getVersion());
+        Assert.assertTrue(v2.getMachine().isFrozen());
+        Assert.assertEquals(Phone.State.OffHook, machine.loop(talking).map(Phone::getState).orElse(null));
+        Assert.assertEquals(1, v2.getStarted());
+        Assert.assertEquals(1, machine.getVersions().size());
+    }
+
+    @Test
+    public void testInFlightOnStartedVersion() throws Exception {
+
+        final CountDownLatch dialing = new CountDownLatch(1);
+        final CountDownLatch connect = new CountDownLatch(1);
+        final StateMachine<Phone.State, Phone> slow = new StateMachine<Phone.State, Phone>(
+                "Slow", Phone::getState, Phone::withState, Phone::getLine) {
+            {
+                fromState(Phone.State.OffHook)
+                        .permit(Phone.CallDialed.class, Phone.State.Connected, (dialed, phone) -> {
+                            dialing.countDown();
+                            try {
+                                connect.await();
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            return phone;
+                        });
+            }
+        };
+        final VersionedStateMachine<Phone.State, Phone> machine = new VersionedStateMachine<>(slow);
+        final VersionedStateMachine.Version<Phone.State, Phone> v1 = machine.getCurrent();
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+
+        final CompletableFuture<Optional<Phone>> inFlight =
+                CompletableFuture.supplyAsync(() -> machine.transition(offHook, new Phone.CallDialed("1")));
+        dialing.await();
+        Assert.assertEquals(1, v1.getInFlight());
+
+        final VersionedStateMachine.Version<Phone.State, Phone> v2 =
+                machine.publish(new PhoneCallStateMachine(new TestClock()));
+        Assert.assertTrue(v1.isRetired());
+        Assert.assertEquals(Phone.State.Ringing,
+                            machine.transition(offHook, new Phone.CallDialed("1")).map(Phone::getState).orElse(null));
+        Assert.assertEquals(2, machine.getVersions().size());
+
+        connect.countDown();
+        // started on the first version, so dialing connects immediately
+        Assert.assertEquals(Phone.State.Connected, inFlight.join().map(Phone::getState).orElse(null));
+        Assert.assertEquals(0, v1.getInFlight());
+        Assert.assertEquals(1, v2.getStarted());
+        Assert.assertEquals(1, machine.getVersions().size());
+        Assert.assertSame(v2, machine.getVersions().get(0));
+    }
+
+    @Test
+    public void testDrainedVersionCollected() throws Exception {
+
+        final TestClock clock = new TestClock();
+        final VersionedStateMachine<Phone.State, Phone> machine =
+                new VersionedStateMachine<>(new PhoneCallStateMachine(clock, Duration.ofHours(1)));
+        final WeakReference<StateMachine<Phone.State, Phone>> v1 = new WeakReference<>(machine.getCurrent().getMachine());
+        final Phone offHook = Phone.of(Phone.State.OffHook, null, null, null, Duration.ZERO);
+        Assert.assertTrue(machine.transition(offHook, new Phone.CallDialed("1")).isPresent());
+
+        // nothing in flight, so retired version is released on publish
+        machine.publish(new PhoneCallStateMachine(clock, Duration.ofMinutes(1)));
+        Assert.assertTrue("Drained version should be collected", StateMachineTest.collected(v1));
+        Assert.assertEquals(1, machine.getVersions().size());
+    }
+}